@@ -5,10 +5,21 @@ import com.badlogic.gdx.files.FileHandle;
 import com.badlogic.gdx.graphics.Pixmap;
 import com.badlogic.gdx.math.MathUtils;
 import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntArray;
 import com.badlogic.gdx.utils.StreamUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Based on Nick Badal's Android port ( https://github.com/nbadal/android-gif-encoder/blob/master/GifEncoder.java ) of
@@ -54,14 +65,152 @@ public class AnimatedGif implements AnimationWriter, Dithered {
      */
     @Override
     public void write(OutputStream output, Array<Pixmap> frames, int fps) {
-        if (palette == null)
+        final PaletteReducer original = palette;
+        final PaletteReducer[] palettes = localPalettes ? analyzeLocalPalettes(frames)
+                : sceneCutThreshold > 0.0 ? analyzeScenePalettes(frames) : null;
+        if (palette == null && palettes == null)
             palette = new PaletteReducer(frames);
         if(!start(output)) return;
         setFrameRate(fps);
-        for (int i = 0; i < frames.size; i++) {
-            addFrame(frames.get(i));
+        Array<Pixmap> distinct = frames;
+        PaletteReducer[] distinctPalettes = palettes;
+        int[] delays = null;
+        if (duplicateMerging) {
+            final IntArray runs = FrameDifference.distinctFrames(frames);
+            distinct = new Array<>(runs.size >>> 1);
+            distinctPalettes = palettes == null ? null : new PaletteReducer[runs.size >>> 1];
+            delays = new int[runs.size >>> 1];
+            for (int r = 0, i = 0; r < runs.size; r += 2, i++) {
+                distinct.add(frames.get(runs.get(r)));
+                if (palettes != null)
+                    distinctPalettes[i] = palettes[runs.get(r)];
+                delays[i] = delay * runs.get(r + 1);
+            }
+        }
+        if (frameThreads > 1)
+            addFramesParallel(distinct, distinctPalettes, delays);
+        else {
+            for (int i = 0; i < distinct.size; i++) {
+                if (distinctPalettes != null)
+                    palette = distinctPalettes[i];
+                addFrame(distinct.get(i), delays == null ? -1 : delays[i]);
+            }
         }
         finish();
+        if (palettes != null)
+            palette = original;
+    }
+
+    /**
+     * Writes the given Pixmap values in {@code frames}, in order, to an animated GIF in the WritableByteChannel
+     * {@code channel}. The resulting GIF will play back at {@code fps} frames per second. Output is already gathered
+     * into large blocks internally, so each block is handed to the channel as-is, with no extra buffering.
+     * @param channel the WritableByteChannel to write to; will not be closed by this method
+     * @param frames an Array of Pixmap frames that should all be the same size, to be written in order
+     * @param fps how many frames (from {@code frames}) to play back per second
+     */
+    public void write(WritableByteChannel channel, Array<Pixmap> frames, int fps) {
+        write(Channels.newOutputStream(channel), frames, fps);
+    }
+
+    /**
+     * Analyzes each frame in {@code frames} to get its own palette, on {@link #getFrameThreads()} threads at once, then
+     * goes through the frames in order and reuses the most recently chosen palette for any frame whose own palette is
+     * within {@link #getPaletteTolerance()} of it (measured by {@link #paletteDifference(PaletteReducer, PaletteReducer)}).
+     * If {@link #palette} is set, its dither strength is used for all the new palettes.
+     *
+     * @param frames the frames to analyze
+     * @return an array with a PaletteReducer for each frame, where consecutive frames often share the same one
+     */
+    protected PaletteReducer[] analyzeLocalPalettes(final Array<Pixmap> frames) {
+        final PaletteReducer[] palettes = new PaletteReducer[frames.size];
+        if (frameThreads > 1 && frames.size > 1) {
+            ExecutorService pool = Executors.newFixedThreadPool(frameThreads, new DaemonThreadFactory());
+            try {
+                ArrayDeque<Future<PaletteReducer>> analyzed = new ArrayDeque<>(frames.size);
+                for (int i = 0; i < frames.size; i++) {
+                    final Pixmap frame = frames.get(i);
+                    analyzed.addLast(pool.submit(new Callable<PaletteReducer>() {
+                        @Override
+                        public PaletteReducer call() {
+                            return new PaletteReducer(frame);
+                        }
+                    }));
+                }
+                for (int i = 0; i < frames.size; i++) {
+                    palettes[i] = analyzed.removeFirst().get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Gdx.app.error("anim8", e.getMessage());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        PaletteReducer current = null;
+        for (int i = 0; i < frames.size; i++) {
+            PaletteReducer next = palettes[i];
+            if (next == null)
+                next = new PaletteReducer(frames.get(i));
+            if (current == null || paletteDifference(current, next) > paletteTolerance) {
+                current = next;
+                if (palette != null)
+                    current.setDitherStrength(palette.ditherStrength * 2f);
+            }
+            palettes[i] = current;
+        }
+        return palettes;
+    }
+
+    /**
+     * Splits {@code frames} into scenes wherever the colors change by more than {@link #getSceneCutThreshold()}, and
+     * analyzes each scene for its own palette, with up to {@link #getFrameThreads()} scenes analyzed at once. If
+     * {@link #palette} is set, its dither strength is used for all the new palettes.
+     *
+     * @param frames the frames to analyze
+     * @return an array with a PaletteReducer for each frame, where all frames in a scene share the same one
+     */
+    protected PaletteReducer[] analyzeScenePalettes(final Array<Pixmap> frames) {
+        final PaletteReducer[] palettes = SceneDetection.scenePalettes(frames,
+                SceneDetection.findScenes(frames, sceneCutThreshold, frameThreads), frameThreads);
+        if (palette != null) {
+            for (int i = 0; i < palettes.length; i++) {
+                if (i == 0 || palettes[i] != palettes[i - 1])
+                    palettes[i].setDitherStrength(palette.ditherStrength * 2f);
+            }
+        }
+        return palettes;
+    }
+
+    /**
+     * Measures how badly {@code current} would stand in for {@code next}: for every opaque color in next, this finds
+     * the {@link PaletteReducer#difference(int, int)} to the closest opaque color in current, and returns the average.
+     * If next has a transparent color and current does not, current can't stand in at all, so this returns positive
+     * infinity.
+     *
+     * @param current the palette that might be reused
+     * @param next the palette analyzed for the next frame
+     * @return the average difference between colors in next and their closest match in current
+     */
+    protected static double paletteDifference(PaletteReducer current, PaletteReducer next) {
+        final int[] from = current.paletteArray, to = next.paletteArray;
+        if (to[0] == 0 && from[0] != 0)
+            return Double.POSITIVE_INFINITY;
+        double total = 0.0;
+        int count = 0;
+        for (int i = 0; i < to.length; i++) {
+            if ((to[i] & 0x80) == 0)
+                continue;
+            double best = Double.POSITIVE_INFINITY;
+            for (int j = 0; j < from.length && best > 0.0; j++) {
+                if ((from[j] & 0x80) != 0)
+                    best = Math.min(best, PaletteReducer.difference(from[j], to[i]));
+            }
+            total += best;
+            count++;
+        }
+        return count == 0 ? 0.0 : total / count;
     }
 
     protected Dithered.DitherAlgorithm ditherAlgorithm = Dithered.DitherAlgorithm.PATTERN;
@@ -86,14 +235,88 @@ public class AnimatedGif implements AnimationWriter, Dithered {
 
     protected OutputStream out;
 
+    protected final ReusableBufferedOutputStream bufferedOut = new ReusableBufferedOutputStream(1 << 16); // wraps the stream given to start()
+
     protected Pixmap image; // current frame
 
     protected byte[] indexedPixels; // converted frame indexed to palette
 
+    protected boolean temporalCoherence = false; // reuse indices of pixels unchanged since the previous frame
+
+    protected int[] previousPixels; // source RGBA of the previous frame, only kept if temporalCoherence is true
+
+    protected byte[] previousIndexedPixels; // indexedPixels of the previous frame, if temporalCoherence is true
+
+    protected PaletteReducer previousPalette; // the palette previousIndexedPixels refer to
+
+    protected final int[] previousPaletteArray = new int[256]; // previousPalette's colors when it was last used
+
+    protected Dithered.DitherAlgorithm previousDitherAlgorithm; // the dither previousIndexedPixels were made with
+
+    protected float previousDitherStrength; // previousPalette's dither strength when it was last used
+
+    protected int frameThreads = 1; // how many frames write() can quantize and compress at once
+
+    protected PaletteReducer paletteSource; // in a worker of addFramesParallel(), the palette that palette copies
+
+    protected int maxFramesInFlight = 2; // how many frames can be encoded but not yet written
+
+    protected boolean frameDifferencing = false; // write only the changed area of each frame
+
+    protected boolean duplicateMerging = false; // write a run of identical frames once, with their delays added
+
+    protected int nearDuplicatePixels = 0; // a frame with fewer changed pixels than this is dropped
+
+    protected double nearDuplicateDifference = 0.0; // a frame whose changed pixels differ by less than this is dropped
+
+    protected int[] pendingColors; // the RGBA8888 colors in pendingColorTab, when nearDuplicateDifference is used
+
+    protected int frameDelay = -1; // delay in milliseconds for the frame being added, or -1 to use delay
+
+    protected int pendingDelay = -1; // delay in milliseconds for the frame waiting to be written, or -1 to use delay
+
+    protected boolean hasPending = false; // if frameDifferencing, true when a frame is waiting to be written
+
+    protected byte[] pendingPixels; // if frameDifferencing, full-size indices of the frame waiting to be written
+
+    protected final byte[] pendingColorTab = new byte[256 * 3]; // the color table of the frame waiting to be written
+
+    protected int pendingTransIndex = -1; // the transparent index of the frame waiting to be written
+
+    protected int pendingColorDepth = 8; // the number of bit planes the frame waiting to be written needs
+
+    protected int pendingPalSize = 7; // the color table size (bits-1) of the frame waiting to be written
+
+    protected final int[] pendingBounds = new int[4]; // x, y, width, height of the area of the waiting frame to write
+
+    protected byte[] canvasPixels; // indices shown under the waiting frame, after the frame before it is disposed
+
+    protected boolean canvasMatches; // true if canvasPixels uses the same palette as the waiting frame
+
+    protected final int[] firstTransparentBounds = new int[4]; // area of the first frame's transparent pixels
+
+    protected final int[] clearedBounds = new int[4]; // area of pixels that become transparent in the next frame
+
+    protected byte[] croppedPixels; // the area of a frame that is actually written, when frameDifferencing
+
+    protected final LZWEncoder encoder = new LZWEncoder(); // reused for every frame
+
+    protected double lossyThreshold = 0.0; // largest PaletteReducer.difference() lossy LZW may introduce; 0 is lossless
+
+    protected boolean localPalettes = false; // analyze each frame for its own palette in write()
+
+    protected double paletteTolerance = 150.0; // how different palettes can be and still be shared, if localPalettes
+
+    protected double sceneCutThreshold = 0.0; // histogram difference that starts a new scene and palette; 0 is off
+
     protected int colorDepth; // number of bit planes
 
     protected byte[] colorTab; // RGB palette, 3 bytes per color
 
+    protected final byte[] globalColorTab = new byte[256 * 3]; // the palette written as the global color table
+
+    protected int globalPalSize = 7; // global color table size (bits-1)
+
     protected boolean[] usedEntry = new boolean[256]; // active palette entries
 
     protected int palSize = 7; // color table size (bits-1)
@@ -182,6 +405,261 @@ public class AnimatedGif implements AnimationWriter, Dithered {
         this.flipY = flipY;
     }
     
+    /**
+     * Returns true if unchanged pixels reuse the previous frame's palette indices; see
+     * {@link #setTemporalCoherence(boolean)}.
+     * @return true if pixels that didn't change since the previous frame reuse that frame's palette indices
+     */
+    public boolean isTemporalCoherence() {
+        return temporalCoherence;
+    }
+
+    /**
+     * If true, any pixel with exactly the same RGBA color as the same pixel in the previous frame reuses the previous
+     * frame's palette index instead of being quantized (and dithered) again. This skips quantization work for static
+     * areas, and guarantees that static areas have identical indices from frame to frame regardless of the dither
+     * algorithm. Default is false. This should be set before {@link #start(OutputStream)}; if {@link #palette} is
+     * replaced or its colors change between frames, the next frame is fully quantized with the new palette. When
+     * {@link #setFrameThreads(int)} is greater than 1, each thread compares a frame with the last frame that thread
+     * quantized, which is usually a few frames earlier, so less work is skipped for areas that change slowly.
+     * @param temporalCoherence true if unchanged pixels should reuse the previous frame's palette indices
+     */
+    public void setTemporalCoherence(boolean temporalCoherence) {
+        this.temporalCoherence = temporalCoherence;
+    }
+
+    /**
+     * Returns true if this only writes the changed area of each frame; see {@link #setFrameDifferencing(boolean)}.
+     * @return true if frame differencing is enabled
+     */
+    public boolean isFrameDifferencing() {
+        return frameDifferencing;
+    }
+
+    /**
+     * If true, each frame after the first only stores the smallest rectangle containing every palette index that changed
+     * since the previous frame, and uses the "do not dispose" disposal method so the rest of the previous frame stays
+     * visible. If the palette has a transparent color (index 0, which is usual for palettes computed from images with
+     * transparency), pixels inside that rectangle that didn't change are written as transparent, which gives LZW long
+     * runs to compress. When a pixel becomes transparent in the next frame, the frame before it is cleared instead
+     * (disposal method 2) over an area large enough to include that pixel. The animation looks the same either way, but
+     * for animations where only part of the image changes at a time, files are much smaller. Default is false.
+     * <br>
+     * When this is true, each frame is written when the next frame is added (or when {@link #finish()} is called), so
+     * the delay set by {@link #setDelay(int)} after adding a frame applies to that frame. This should be set before
+     * {@link #start(OutputStream)}, and overrides {@link #setDispose(int)}.
+     * @param frameDifferencing true if only changed areas should be written
+     */
+    public void setFrameDifferencing(boolean frameDifferencing) {
+        this.frameDifferencing = frameDifferencing;
+    }
+
+    /**
+     * Returns true if runs of identical frames are written once; see {@link #setDuplicateMerging(boolean)}.
+     * @return true if duplicate frames are merged
+     */
+    public boolean isDuplicateMerging() {
+        return duplicateMerging;
+    }
+
+    /**
+     * If true, a frame that is identical to the frame before it isn't written at all; instead, the frame before it is
+     * shown for longer, by adding the duplicate's delay to its own. {@link #write(OutputStream, Array, int)} compares
+     * frames by a cheap hash of their pixels first, and only compares frames with matching hashes pixel by pixel, so
+     * duplicates are found before any quantizing. {@link #addFrame(Pixmap)} can't rely on the previous frame still
+     * existing, so it merges frames that reduce to exactly the same palette and indices instead. Like
+     * {@link #setFrameDifferencing(boolean)}, this holds each frame until the next one is added, so the delay set by
+     * {@link #setDelay(int)} after adding a frame applies to that frame. The animation looks the same either way.
+     * Default is false. This should be set before {@link #start(OutputStream)}.
+     * @param duplicateMerging true if runs of identical frames should be written as one longer frame
+     */
+    public void setDuplicateMerging(boolean duplicateMerging) {
+        this.duplicateMerging = duplicateMerging;
+    }
+
+    /**
+     * Gets how many pixels have to change for a frame to be written; see {@link #setNearDuplicatePixels(int)}.
+     * @return the number of changed pixels a frame needs to not be merged into the frame before it; 0 if unused
+     */
+    public int getNearDuplicatePixels() {
+        return nearDuplicatePixels;
+    }
+
+    /**
+     * If greater than 0, a frame that reduces to the same palette as the last written frame, but changes fewer than
+     * this many of its pixels, isn't written; instead, the last written frame is shown for longer, by adding the
+     * dropped frame's delay to its own. Unlike {@link #setDuplicateMerging(boolean)}, this is lossy: a small change,
+     * such as dither noise flickering between frames or a tiny blinking light, is lost until a frame that changes more
+     * comes along. Frames are always compared to the last frame that was written, not to the last frame that was
+     * dropped, so a slow fade is still written once enough of it has changed. This compares the palette indices the
+     * frames reduce to, so it costs almost nothing beyond holding each frame until the next one is added (like
+     * {@link #setFrameDifferencing(boolean)} does). This can be combined with
+     * {@link #setNearDuplicateDifference(double)}, where a frame is dropped if either allows it. Default is 0, which
+     * never drops a frame for this reason. This should be set before {@link #start(OutputStream)}.
+     * @param nearDuplicatePixels a frame with fewer changed pixels than this is dropped; 0 to not drop frames this way
+     */
+    public void setNearDuplicatePixels(int nearDuplicatePixels) {
+        this.nearDuplicatePixels = Math.max(nearDuplicatePixels, 0);
+    }
+
+    /**
+     * Gets the total color difference a frame needs to be written; see {@link #setNearDuplicateDifference(double)}.
+     * @return the total color difference a frame needs to not be merged into the frame before it; 0 if unused
+     */
+    public double getNearDuplicateDifference() {
+        return nearDuplicateDifference;
+    }
+
+    /**
+     * If greater than 0, a frame that reduces to the same palette as the last written frame isn't written if the
+     * {@link PaletteReducer#difference(int, int)} between the old and new color of every pixel it changes adds up to
+     * less than this; instead, the last written frame is shown for longer, by adding the dropped frame's delay to its
+     * own. Any pixel that becomes transparent, or stops being transparent, keeps a frame from being dropped this way.
+     * Colors in an analyzed palette are usually at least 400 apart by that measure, so a budget of about 1000 lets a
+     * frame through only if it changes a pixel or two between similar colors; large budgets drop more frames, and more
+     * of the motion in them. Otherwise, this works like {@link #setNearDuplicatePixels(int)}, and can be combined with
+     * it. Default is 0, which never drops a frame for this reason. This should be set before
+     * {@link #start(OutputStream)}.
+     * @param nearDuplicateDifference a frame whose changed pixels differ by less than this in total is dropped; 0 to
+     *                                not drop frames this way
+     */
+    public void setNearDuplicateDifference(double nearDuplicateDifference) {
+        this.nearDuplicateDifference = Math.max(nearDuplicateDifference, 0.0);
+    }
+
+    /**
+     * Returns true if {@link #write(OutputStream, Array, int)} gives each frame its own palette; see
+     * {@link #setLocalPalettes(boolean)}.
+     * @return true if frames get their own palettes
+     */
+    public boolean isLocalPalettes() {
+        return localPalettes;
+    }
+
+    /**
+     * If true, {@link #write(OutputStream, Array, int)} analyzes every frame separately instead of making one palette
+     * for the whole animation, and writes each frame's palette as its local color table. Animations where the colors
+     * change a lot over time (such as ones with scene changes) need much less dithering this way. Frames are analyzed
+     * on {@link #getFrameThreads()} threads at once. So that the color table doesn't change for every frame, a frame
+     * reuses the palette in use before it if its own palette is within {@link #getPaletteTolerance()} of that one. Any
+     * {@link #palette} that was set is left alone, other than using its dither strength. Default is false.
+     * @param localPalettes true if each frame (or run of similar frames) should get its own palette
+     */
+    public void setLocalPalettes(boolean localPalettes) {
+        this.localPalettes = localPalettes;
+    }
+
+    /**
+     * Gets how different a frame's palette can be from the palette in use before it, and still reuse that palette,
+     * when {@link #setLocalPalettes(boolean)} is enabled.
+     * @return the palette tolerance, as an average {@link PaletteReducer#difference(int, int)}
+     */
+    public double getPaletteTolerance() {
+        return paletteTolerance;
+    }
+
+    /**
+     * Sets how different a frame's palette can be from the palette in use before it, and still reuse that palette,
+     * when {@link #setLocalPalettes(boolean)} is enabled. This is the average {@link PaletteReducer#difference(int, int)}
+     * from each color in the new palette to the closest color in the current one. At 0, frames only share palettes if
+     * every color of one is in the other; larger values mean fewer color tables but more dithering. Default is 150.
+     * @param paletteTolerance how different palettes can be and still be reused; 0 or more
+     */
+    public void setPaletteTolerance(double paletteTolerance) {
+        this.paletteTolerance = Math.max(paletteTolerance, 0.0);
+    }
+
+    /**
+     * Gets how much the colors must change between frames to start a new scene with its own palette; see
+     * {@link #setSceneCutThreshold(double)}.
+     * @return the scene cut threshold, or 0 if scene detection is off
+     */
+    public double getSceneCutThreshold() {
+        return sceneCutThreshold;
+    }
+
+    /**
+     * If greater than 0, {@link #write(OutputStream, Array, int)} detects scene changes and gives each scene its own
+     * palette, written as the local color table of that scene's frames. This is a cheaper middle ground between one
+     * palette for the whole animation and {@link #setLocalPalettes(boolean)}, which analyzes every frame. Scenes are
+     * found by comparing coarse color histograms of consecutive frames; the threshold is the fraction of pixels that
+     * would need to change to a different color range, from 0.0 to 1.0, and 0.4 catches most hard cuts without
+     * splitting on ordinary motion. Histograms and scene palettes are computed on {@link #getFrameThreads()} threads.
+     * This has no effect if local palettes are enabled. Default is 0, which uses one palette for all frames.
+     * @param sceneCutThreshold how different consecutive frames must be to start a new scene; 0 disables this
+     */
+    public void setSceneCutThreshold(double sceneCutThreshold) {
+        this.sceneCutThreshold = Math.max(sceneCutThreshold, 0.0);
+    }
+
+    /**
+     * Gets the threshold for lossy LZW compression; see {@link #setLossyThreshold(double)}.
+     * @return the lossy threshold, or 0 if compression is lossless
+     */
+    public double getLossyThreshold() {
+        return lossyThreshold;
+    }
+
+    /**
+     * If greater than 0, LZW compression becomes lossy, like gifsicle's {@code --lossy} option: when a run of pixels
+     * can't be continued with the exact color of the next pixel, it may be continued with any palette color that has a
+     * {@link PaletteReducer#difference(int, int)} of less than this threshold from that exact color. Dithered frames
+     * have many short runs broken by single pixels, so they benefit the most. Each pixel can change by less than the
+     * threshold, and transparent pixels are never changed. Palettes made by {@link PaletteReducer#analyze(Pixmap)} keep
+     * their colors at least 400 apart, so this needs to be larger than that to have an effect; 1000 usually makes files
+     * about a third smaller, and 3000 about half as large, with more visible color shifts. Default is 0, which keeps
+     * compression lossless.
+     * @param lossyThreshold the largest color difference a pixel may have from its quantized color; 0 for lossless
+     */
+    public void setLossyThreshold(double lossyThreshold) {
+        this.lossyThreshold = Math.max(lossyThreshold, 0.0);
+    }
+
+    /**
+     * Gets how many threads {@link #write(OutputStream, Array, int)} uses to quantize and compress different frames at
+     * the same time. Default is 1.
+     * @return how many frames can be encoded at once
+     */
+    public int getFrameThreads() {
+        return frameThreads;
+    }
+
+    /**
+     * Gets the most frames that can be encoded (or waiting to be written) at one time when {@link #getFrameThreads()}
+     * is greater than 1.
+     * @return the maximum number of frames in flight
+     */
+    public int getMaxFramesInFlight() {
+        return maxFramesInFlight;
+    }
+
+    /**
+     * Sets how many threads {@link #write(OutputStream, Array, int)} uses to quantize and LZW-compress different frames
+     * at the same time. Finished frames are still written in order, by the thread that called write(). At most
+     * {@code threads * 2} frames are in flight (being encoded, or encoded and waiting to be written) at once; use
+     * {@link #setFrameThreads(int, int)} to change that limit. The output is the same as with one thread. This doesn't
+     * affect {@link #addFrame(Pixmap)}, which always encodes one frame on the calling thread, and temporal coherence
+     * (see {@link #setTemporalCoherence(boolean)}) isn't used when threads is greater than 1, though that doesn't
+     * change the output. The worker threads only exist during a call to write().
+     * @param threads how many frames to encode at once; 1 or less encodes frames one at a time
+     */
+    public void setFrameThreads(int threads) {
+        setFrameThreads(threads, Math.max(threads, 1) * 2);
+    }
+
+    /**
+     * Sets how many threads {@link #write(OutputStream, Array, int)} uses to quantize and LZW-compress different frames
+     * at the same time, and how many frames can be in flight (being encoded, or encoded and waiting to be written) at
+     * once. A larger maxFramesInFlight keeps all threads busy when some frames take much longer than others, but can
+     * hold more encoded frames in memory. The output is the same as with one thread.
+     * @param threads how many frames to encode at once; 1 or less encodes frames one at a time
+     * @param maxFramesInFlight how many frames can be submitted but not yet written; will be at least threads
+     */
+    public void setFrameThreads(int threads, int maxFramesInFlight) {
+        frameThreads = Math.max(threads, 1);
+        this.maxFramesInFlight = Math.max(maxFramesInFlight, frameThreads);
+    }
+
     /**
      * Gets the {@link Dithered.DitherAlgorithm} this is currently using.
      * @return which dithering algorithm this currently uses.
@@ -221,23 +699,14 @@ public class AnimatedGif implements AnimationWriter, Dithered {
                 setSize(im.getWidth(), im.getHeight());
             }
             image = im;
-            getImagePixels(); // convert to correct format if necessary
             analyzePixels(); // build color table & map pixels
-            if (firstFrame) {
-                writeLSD(); // logical screen descriptior
-                writePalette(); // global color table
-                if (repeat >= 0) {
-                    // use NS app extension to indicate reps
-                    writeNetscapeExt();
-                }
-            }
-            writeGraphicCtrlExt(); // write graphic control extension
-            writeImageDesc(); // image descriptor
-            if (!firstFrame) {
-                writePalette(); // local color table
+            if (holdsFrames()) {
+                addDifferencedFrame(); // written when the next frame is added, or by finish()
+            } else {
+                writeFrameHeader(); // everything before the pixel data
+                writePixels(); // encode and write pixel data
+                firstFrame = false;
             }
-            writePixels(); // encode and write pixel data
-            firstFrame = false;
         } catch (IOException e) {
             ok = false;
         }
@@ -245,6 +714,372 @@ public class AnimatedGif implements AnimationWriter, Dithered {
         return ok;
     }
 
+    /**
+     * Adds next GIF frame, like {@link #addFrame(Pixmap)}, but shows it for {@code delay} milliseconds instead of the
+     * delay set by {@link #setDelay(int)} or {@link #setFrameRate(float)}, so each frame can have its own duration.
+     *
+     * @param im the next frame
+     * @param delay how many milliseconds to show this frame for, or -1 to use {@link #setDelay(int)}'s delay
+     * @return true if successful.
+     */
+    public boolean addFrame(Pixmap im, int delay) {
+        frameDelay = Math.max(delay, -1);
+        try {
+            return addFrame(im);
+        } finally {
+            frameDelay = -1;
+        }
+    }
+
+    /**
+     * Quantizes and LZW-encodes up to {@link #getFrameThreads()} frames at once on worker threads, while this thread
+     * writes finished frames in order. Each worker uses its own copy of {@link #palette} that shares the palette
+     * mapping, so {@link #palette} must already be set. At most {@link #getMaxFramesInFlight()} frames are submitted
+     * but not yet written at any time. The output is the same as calling {@link #addFrame(Pixmap)} on each frame.
+     *
+     * @param frames the frames to add, in order
+     * @return true if successful
+     */
+    protected boolean addFramesParallel(Array<Pixmap> frames) {
+        return addFramesParallel(frames, null);
+    }
+
+    /**
+     * Like {@link #addFramesParallel(Array)}, but if {@code palettes} is not null, each frame is reduced with the
+     * PaletteReducer at the same index in palettes instead of with {@link #palette}.
+     *
+     * @param frames the frames to add, in order
+     * @param palettes a PaletteReducer for each frame, or null to use {@link #palette} for all of them
+     * @return true if successful
+     */
+    protected boolean addFramesParallel(Array<Pixmap> frames, PaletteReducer[] palettes) {
+        return addFramesParallel(frames, palettes, null);
+    }
+
+    /**
+     * Like {@link #addFramesParallel(Array, PaletteReducer[])}, but if {@code delays} is not null, each frame is shown
+     * for the number of milliseconds at the same index in delays instead of for the delay set by {@link #setDelay(int)}.
+     *
+     * @param frames the frames to add, in order
+     * @param palettes a PaletteReducer for each frame, or null to use {@link #palette} for all of them
+     * @param delays how many milliseconds to show each frame for, or null to use {@link #setDelay(int)}'s delay
+     * @return true if successful
+     */
+    protected boolean addFramesParallel(Array<Pixmap> frames, PaletteReducer[] palettes, int[] delays) {
+        if (frames.size == 0 || !started) {
+            return false;
+        }
+        if (!sizeSet) {
+            // use first frame's size
+            setSize(frames.first().getWidth(), frames.first().getHeight());
+        }
+        final int maxInFlight = Math.max(maxFramesInFlight, 1);
+        final boolean held = holdsFrames();
+        ExecutorService pool = Executors.newFixedThreadPool(frameThreads, new DaemonThreadFactory());
+        ArrayDeque<Future<AnimatedGif>> pending = new ArrayDeque<>(maxInFlight);
+        ArrayDeque<AnimatedGif> idle = new ArrayDeque<>(maxInFlight); // workers and their buffers are reused
+        try {
+            for (int i = 0, next = 0; i < frames.size; i++) {
+                while (next < frames.size && pending.size() < maxInFlight) {
+                    AnimatedGif w = idle.pollFirst();
+                    if (w == null) {
+                        w = new AnimatedGif();
+                        w.setSize(width, height);
+                        w.flipY = flipY;
+                        w.ditherAlgorithm = ditherAlgorithm;
+                        w.temporalCoherence = temporalCoherence;
+                        if (palettes == null)
+                            w.palette = new PaletteReducer(palette);
+                        w.lossyThreshold = lossyThreshold;
+                        w.out = new ByteArrayOutputStream(width * height >>> 1);
+                    }
+                    final AnimatedGif worker = w;
+                    if (palettes != null && worker.paletteSource != palettes[next]) {
+                        // each worker needs its own copy, but only when the palette changes, not for every frame
+                        worker.palette = new PaletteReducer(palettes[next]);
+                        worker.paletteSource = palettes[next];
+                    }
+                    worker.image = frames.get(next++);
+                    pending.addLast(pool.submit(new Callable<AnimatedGif>() {
+                        @Override
+                        public AnimatedGif call() throws IOException {
+                            worker.analyzePixels();
+                            worker.image = null;
+                            if (!held) {
+                                ((ByteArrayOutputStream) worker.out).reset();
+                                worker.writePixels();
+                            }
+                            return worker;
+                        }
+                    }));
+                }
+                AnimatedGif done = pending.removeFirst().get();
+                if (colorTab == null)
+                    colorTab = new byte[256 * 3];
+                System.arraycopy(done.colorTab, 0, colorTab, 0, colorTab.length);
+                transIndex = done.transIndex;
+                colorDepth = done.colorDepth;
+                palSize = done.palSize;
+                frameDelay = delays == null ? -1 : delays[i];
+                if (held) {
+                    final byte[] own = indexedPixels;
+                    indexedPixels = done.indexedPixels;
+                    addDifferencedFrame();
+                    indexedPixels = own;
+                } else {
+                    writeFrameHeader();
+                    ((ByteArrayOutputStream) done.out).writeTo(out);
+                    firstFrame = false;
+                }
+                frameDelay = -1;
+                idle.addLast(done);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            Gdx.app.error("anim8", e.getMessage());
+            return false;
+        } catch (IOException e) {
+            Gdx.app.error("anim8", e.getMessage());
+            return false;
+        } finally {
+            frameDelay = -1;
+            pool.shutdownNow();
+        }
+        return true;
+    }
+
+    /**
+     * Writes everything that comes before a frame's pixel data: for the first frame, the logical screen descriptor,
+     * global color table, and Netscape extension; then for every frame, the graphic control extension, the image
+     * descriptor, and (after the first frame) the local color table.
+     */
+    protected void writeFrameHeader() throws IOException {
+        writeFrameHeader(0, 0, width, height, -1);
+    }
+
+    /**
+     * Writes everything that comes before a frame's pixel data, like {@link #writeFrameHeader()}, but for a frame that
+     * only covers part of the image, and optionally with a specific disposal method.
+     *
+     * @param left the x position of the frame's area, relative to {@link #setPosition(int, int)}
+     * @param top the y position of the frame's area, relative to {@link #setPosition(int, int)}
+     * @param w the width of the frame's area
+     * @param h the height of the frame's area
+     * @param disposal the GIF disposal method to use, or -1 to use the default or {@link #setDispose(int)}
+     */
+    protected void writeFrameHeader(int left, int top, int w, int h, int disposal) throws IOException {
+        if (firstFrame) {
+            writeLSD(); // logical screen descriptior
+            writePalette(); // global color table
+            System.arraycopy(colorTab, 0, globalColorTab, 0, colorTab.length);
+            globalPalSize = palSize;
+            if (repeat >= 0) {
+                // use NS app extension to indicate reps
+                writeNetscapeExt();
+            }
+        }
+        writeGraphicCtrlExt(disposal); // write graphic control extension
+        writeImageDesc(left, top, w, h); // image descriptor
+        if (needsLocalPalette()) {
+            writePalette(); // local color table
+        }
+    }
+
+    /**
+     * Returns true if the current frame needs its own local color table, because it isn't the first frame and its
+     * palette differs from the global color table, or uses more entries than the global color table has. Frames that
+     * share the palette of the first frame just use the global color table.
+     */
+    protected boolean needsLocalPalette() {
+        if (firstFrame)
+            return false;
+        if (palSize > globalPalSize)
+            return true;
+        for (int i = 0, n = Math.min(colorTab.length, 6 << palSize); i < n; i++) {
+            if (colorTab[i] != globalColorTab[i])
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if each frame has to be held until the next one is added, which is the case if frame differencing,
+     * duplicate merging, or near-duplicate merging is enabled.
+     */
+    protected boolean holdsFrames() {
+        return frameDifferencing || duplicateMerging || nearDuplicatePixels > 0 || nearDuplicateDifference > 0.0;
+    }
+
+    /**
+     * Used when {@link #holdsFrames()} is true, after {@link #analyzePixels()}: if the current frame has the same palette
+     * as the frame waiting to be written, and the same indices (with duplicate merging) or close enough indices (with
+     * near-duplicate merging), this just adds the current frame's delay to the waiting one's. Otherwise, this decides how the previously added frame should be
+     * disposed (now that the frame after it is known), writes it, and then holds on to the current frame until the next
+     * one is added or {@link #finish()} is called.
+     */
+    protected void addDifferencedFrame() throws IOException {
+        final int nPix = width * height;
+        final boolean samePalette = hasPending && Arrays.equals(pendingColorTab, colorTab);
+        final boolean first = !hasPending;
+        if (samePalette && transIndex == pendingTransIndex
+                && (duplicateMerging && sameIndices(pendingPixels, indexedPixels, nPix) || nearDuplicate(nPix))) {
+            pendingDelay = (pendingDelay < 0 ? delay : pendingDelay) + (frameDelay < 0 ? delay : frameDelay);
+            return;
+        }
+        if (hasPending) {
+            // if any pixel becomes transparent, it can't be shown over the pending frame, so the pending frame must be
+            // cleared over an area that contains all such pixels
+            int disposal = frameDifferencing ? 1 : -1;
+            if (frameDifferencing && transIndex >= 0) {
+                if (newlyTransparent(pendingPixels, pendingTransIndex, indexedPixels, (byte) transIndex,
+                        clearedBounds)) {
+                    disposal = 2;
+                    union(pendingBounds, clearedBounds);
+                }
+            }
+            writePending(disposal);
+        }
+        if (pendingPixels == null || pendingPixels.length != nPix) {
+            pendingPixels = new byte[nPix];
+            canvasPixels = new byte[nPix];
+        }
+        System.arraycopy(indexedPixels, 0, pendingPixels, 0, nPix);
+        System.arraycopy(colorTab, 0, pendingColorTab, 0, pendingColorTab.length);
+        pendingTransIndex = transIndex;
+        pendingColorDepth = colorDepth;
+        pendingPalSize = palSize;
+        pendingDelay = frameDelay;
+        if (first || !frameDifferencing) {
+            // the first frame is always written in full, as is every frame without differencing
+            pendingBounds[0] = pendingBounds[1] = 0;
+            pendingBounds[2] = width;
+            pendingBounds[3] = height;
+            if (first) {
+                firstTransparentBounds[2] = 0;
+                if (frameDifferencing && transIndex >= 0)
+                    newlyTransparent(null, -1, pendingPixels, (byte) transIndex, firstTransparentBounds);
+            }
+        } else if (!samePalette) {
+            // indices can't be compared between different palettes
+            pendingBounds[0] = pendingBounds[1] = 0;
+            pendingBounds[2] = width;
+            pendingBounds[3] = height;
+        } else if (!FrameDifference.changedArea(canvasPixels, pendingPixels, width, height, pendingBounds)) {
+            // nothing changed; write one pixel that stays the same
+            pendingBounds[0] = pendingBounds[1] = 0;
+            pendingBounds[2] = pendingBounds[3] = 1;
+        }
+        canvasMatches = samePalette && frameDifferencing;
+        hasPending = true;
+    }
+
+    private boolean nearDuplicate(int count) {
+        if (nearDuplicatePixels <= 0 && nearDuplicateDifference <= 0.0)
+            return false;
+        if (nearDuplicateDifference > 0.0) {
+            if (pendingColors == null)
+                pendingColors = new int[256];
+            for (int i = 0, c = 0; i < 256; i++, c += 3) {
+                pendingColors[i] = (pendingColorTab[c] & 255) << 24 | (pendingColorTab[c + 1] & 255) << 16
+                        | (pendingColorTab[c + 2] & 255) << 8 | 255;
+            }
+        }
+        return FrameDifference.nearDuplicate(pendingPixels, indexedPixels, count, pendingColors, pendingTransIndex,
+                nearDuplicatePixels, nearDuplicateDifference);
+    }
+
+    private static boolean sameIndices(byte[] previous, byte[] current, int count) {
+        for (int i = 0; i < count; i++) {
+            if (previous[i] != current[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the frame held by {@link #addDifferencedFrame()}, then updates the canvas to what is shown after that frame
+     * is disposed.
+     */
+    private void writePending(int disposal) throws IOException {
+        final int left = pendingBounds[0], top = pendingBounds[1], w = pendingBounds[2], h = pendingBounds[3];
+        if (croppedPixels == null || croppedPixels.length < w * h)
+            croppedPixels = new byte[width * height];
+        final boolean skipUnchanged = canvasMatches && pendingTransIndex >= 0;
+        final byte trans = (byte) pendingTransIndex;
+        for (int y = top, j = 0; y < top + h; y++) {
+            for (int x = left, i = y * width + left; x < left + w; x++, i++) {
+                byte index = pendingPixels[i];
+                croppedPixels[j++] = skipUnchanged && canvasPixels[i] == index ? trans : index;
+            }
+        }
+        final byte[] currentTab = colorTab;
+        final int currentTrans = transIndex, currentDepth = colorDepth, currentPalSize = palSize;
+        final int currentDelay = frameDelay;
+        colorTab = pendingColorTab;
+        transIndex = pendingTransIndex;
+        colorDepth = pendingColorDepth;
+        palSize = pendingPalSize;
+        frameDelay = pendingDelay;
+        writeFrameHeader(left, top, w, h, disposal);
+        writePixels(croppedPixels, w, h);
+        firstFrame = false;
+        colorTab = currentTab;
+        transIndex = currentTrans;
+        colorDepth = currentDepth;
+        palSize = currentPalSize;
+        frameDelay = currentDelay;
+
+        System.arraycopy(pendingPixels, 0, canvasPixels, 0, width * height);
+        if (disposal == 2) {
+            for (int y = top; y < top + h; y++) {
+                for (int i = y * width + left, n = i + w; i < n; i++) {
+                    canvasPixels[i] = trans;
+                }
+            }
+        }
+        hasPending = false;
+    }
+
+    /**
+     * Finds the bounding box of pixels that are transparent in next but were not transparent in previous (or all
+     * transparent pixels in next, if previous is null), storing it in bounds and returning true if there are any.
+     */
+    private boolean newlyTransparent(byte[] previous, int previousTrans, byte[] next, byte nextTrans, int[] bounds) {
+        int left = width, right = -1, top = height, bottom = -1;
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i++) {
+                if (next[i] == nextTrans && (previous == null || (previous[i] & 255) != previousTrans)) {
+                    if (x < left) left = x;
+                    if (x > right) right = x;
+                    if (y < top) top = y;
+                    bottom = y;
+                }
+            }
+        }
+        if (right < 0)
+            return false;
+        bounds[0] = left;
+        bounds[1] = top;
+        bounds[2] = right + 1 - left;
+        bounds[3] = bottom + 1 - top;
+        return true;
+    }
+
+    /**
+     * Changes bounds (x, y, width, height) to the smallest rectangle containing both itself and other.
+     */
+    private static void union(int[] bounds, int[] other) {
+        int left = Math.min(bounds[0], other[0]), top = Math.min(bounds[1], other[1]);
+        int right = Math.max(bounds[0] + bounds[2], other[0] + other[2]);
+        int bottom = Math.max(bounds[1] + bounds[3], other[1] + other[3]);
+        bounds[0] = left;
+        bounds[1] = top;
+        bounds[2] = right - left;
+        bounds[3] = bottom - top;
+    }
+
     /**
      * Flushes any pending data and closes output file. If writing to an
      * OutputStream, the stream is not closed.
@@ -255,6 +1090,16 @@ public class AnimatedGif implements AnimationWriter, Dithered {
         boolean ok = true;
         started = false;
         try {
+            if (hasPending) {
+                // when the animation loops, the first frame is drawn over the last; it needs to be cleared wherever
+                // the first frame is transparent
+                int disposal = frameDifferencing ? 1 : -1;
+                if (frameDifferencing && firstTransparentBounds[2] > 0) {
+                    disposal = 2;
+                    union(pendingBounds, firstTransparentBounds);
+                }
+                writePending(disposal);
+            }
             out.write(0x3b); // gif trailer
             out.flush();
             if (closeStream) {
@@ -264,12 +1109,14 @@ public class AnimatedGif implements AnimationWriter, Dithered {
             ok = false;
         }
 
-        // reset for subsequent use
+        // reset for subsequent use; buffers are kept so later animations of the same size don't allocate them again
         transIndex = -1;
+        bufferedOut.setOutput(null);
         out = null;
         image = null;
-        indexedPixels = null;
-        colorTab = null;
+        previousPalette = null;
+        hasPending = false;
+        pendingDelay = -1;
         closeStream = false;
         firstFrame = true;
 
@@ -319,7 +1166,9 @@ public class AnimatedGif implements AnimationWriter, Dithered {
 
     /**
      * Initiates GIF file creation on the given stream. The stream is not closed
-     * automatically.
+     * automatically. Output is buffered internally and written to the stream in
+     * large blocks, so the stream doesn't need to be buffered; everything is
+     * written by the time {@link #finish()} returns.
      *
      * @param os OutputStream on which GIF images are written.
      * @return false if initial write failed.
@@ -329,7 +1178,8 @@ public class AnimatedGif implements AnimationWriter, Dithered {
             return false;
         boolean ok = true;
         closeStream = false;
-        out = os;
+        bufferedOut.setOutput(os);
+        out = bufferedOut;
         try {
             writeString("GIF89a"); // header
         } catch (IOException e) {
@@ -340,16 +1190,53 @@ public class AnimatedGif implements AnimationWriter, Dithered {
     }
 
     /**
-     * Analyzes image colors and creates color map.
+     * Initiates GIF file creation on the given channel; otherwise the same as {@link #start(OutputStream)}. The channel
+     * is not closed automatically.
+     *
+     * @param channel WritableByteChannel on which GIF images are written.
+     * @return false if initial write failed.
+     */
+    public boolean start(WritableByteChannel channel) {
+        return channel != null && start(Channels.newOutputStream(channel));
+    }
+
+    /**
+     * Analyzes image colors and creates color map. A frame that isn't the GIF's size is read in place: only its
+     * width-by-height area at the top left is used, and any position past its edge reads as fully transparent.
      */
     protected void analyzePixels() {
         int nPix = width * height;
-        indexedPixels = new byte[nPix];
-//        palette.analyze(image);
+        final boolean temporal = temporalCoherence;
         final int[] paletteArray = palette.paletteArray;
+        boolean reuse = false;
+        if (temporal) {
+            // indexedPixels still holds the last frame's indices, which can only be reused if the palette (including
+            // its contents, which exact() or analyze() can change) and the dither are the same as they were then
+            reuse = previousPalette == palette && indexedPixels != null && indexedPixels.length == nPix
+                    && previousPixels != null && previousPixels.length == nPix
+                    && previousDitherAlgorithm == ditherAlgorithm
+                    && previousDitherStrength == palette.ditherStrength
+                    && Arrays.equals(previousPaletteArray, paletteArray);
+            byte[] t = previousIndexedPixels;
+            previousIndexedPixels = indexedPixels;
+            indexedPixels = (t != null && t.length == nPix) ? t : new byte[nPix];
+            if (previousPixels == null || previousPixels.length != nPix)
+                previousPixels = new int[nPix];
+            previousPalette = palette;
+            System.arraycopy(paletteArray, 0, previousPaletteArray, 0, 256);
+            previousDitherAlgorithm = ditherAlgorithm;
+            previousDitherStrength = palette.ditherStrength;
+        }
+        else {
+            previousPalette = null;
+            if (indexedPixels == null || indexedPixels.length != nPix)
+                indexedPixels = new byte[nPix];
+        }
+//        palette.analyze(image);
         final byte[] paletteMapping = palette.paletteMapping;
         // initialize quantizer
-        colorTab = new byte[256 * 3]; // create reduced palette
+        if (colorTab == null)
+            colorTab = new byte[256 * 3]; // create reduced palette
         for (int i = 0, bi = 0; i < 256; i++) {
             int pa = paletteArray[i];
             colorTab[bi++] = (byte) (pa >>> 24);
@@ -364,7 +1251,16 @@ public class AnimatedGif implements AnimationWriter, Dithered {
             case NONE:  {
                 for (int y = 0, i = 0; y < height && i < nPix; y++) {
                     for (int px = 0; px < width & i < nPix; px++) {
-                        color = image.getPixel(px, flipped + flipDir * y) & 0xF8F8F880;
+                        color = image.getPixel(px, flipped + flipDir * y);
+                        if (temporal) {
+                            if (reuse && color == previousPixels[i]) {
+                                usedEntry[(indexedPixels[i] = previousIndexedPixels[i]) & 255] = true;
+                                i++;
+                                continue;
+                            }
+                            previousPixels[i] = color;
+                        }
+                        color &= 0xF8F8F880;
                         if ((color & 0x80) == 0 && hasTransparent)
                             indexedPixels[i++] = 0;
                         else {
@@ -383,7 +1279,16 @@ public class AnimatedGif implements AnimationWriter, Dithered {
                 final float errorMul = palette.ditherStrength * 0.375f;
                 for (int y = 0, i = 0; y < height && i < nPix; y++) {
                     for (int px = 0; px < width & i < nPix; px++) {
-                        color = image.getPixel(px, flipped + flipDir * y) & 0xF8F8F880;
+                        color = image.getPixel(px, flipped + flipDir * y);
+                        if (temporal) {
+                            if (reuse && color == previousPixels[i]) {
+                                usedEntry[(indexedPixels[i] = previousIndexedPixels[i]) & 255] = true;
+                                i++;
+                                continue;
+                            }
+                            previousPixels[i] = color;
+                        }
+                        color &= 0xF8F8F880;
                         if ((color & 0x80) == 0 && hasTransparent)
                             indexedPixels[i++] = 0;
                         else {
@@ -419,12 +1324,45 @@ public class AnimatedGif implements AnimationWriter, Dithered {
                 }
             }
             break;
+            case ADAPTIVE_PATTERN: {
+                for (int y = 0, i = 0; y < height && i < nPix; y++) {
+                    for (int px = 0; px < width & i < nPix; px++) {
+                        color = image.getPixel(px, flipped + flipDir * y);
+                        if (temporal) {
+                            if (reuse && color == previousPixels[i]) {
+                                usedEntry[(indexedPixels[i] = previousIndexedPixels[i]) & 255] = true;
+                                i++;
+                                continue;
+                            }
+                            previousPixels[i] = color;
+                        }
+                        color &= 0xF8F8F880;
+                        if ((color & 0x80) == 0 && hasTransparent)
+                            indexedPixels[i++] = 0;
+                        else {
+                            color |= (color >>> 5 & 0x07070700) | 0xFF;
+                            usedEntry[(indexedPixels[i] = (byte) palette.knollAdaptiveIndex(color, px, y)) & 255] = true;
+                            i++;
+                        }
+                    }
+                }
+            }
+            break;
             case GRADIENT_NOISE:
             default: {
                 float pos, adj, strength = palette.ditherStrength * 3.333f;
                 for (int y = 0, i = 0; y < height && i < nPix; y++) {
                     for (int px = 0; px < width & i < nPix; px++) {
-                        color = image.getPixel(px, flipped + flipDir * y) & 0xF8F8F880;
+                        color = image.getPixel(px, flipped + flipDir * y);
+                        if (temporal) {
+                            if (reuse && color == previousPixels[i]) {
+                                usedEntry[(indexedPixels[i] = previousIndexedPixels[i]) & 255] = true;
+                                i++;
+                                continue;
+                            }
+                            previousPixels[i] = color;
+                        }
+                        color &= 0xF8F8F880;
                         if ((color & 0x80) == 0 && hasTransparent)
                             indexedPixels[i++] = 0;
                         else {
@@ -453,32 +1391,55 @@ public class AnimatedGif implements AnimationWriter, Dithered {
             }
             break;
         }
-        colorDepth = 8;
-        palSize = 7;
+        // use the smallest LZW code size that can hold every index this frame uses, and the smallest color table that
+        // can hold every color in the palette, so frames that share a palette can share the global color table
+        int highest = 0, last = 0;
+        for (int i = 255; i > 0; i--) {
+            if (usedEntry[i]) {
+                highest = i;
+                break;
+            }
+        }
+        for (int i = 255; i > 0; i--) {
+            if (paletteArray[i] != 0) {
+                last = i;
+                break;
+            }
+        }
+        colorDepth = 1;
+        while (1 << colorDepth <= highest)
+            colorDepth++;
+        int tableDepth = colorDepth;
+        while (1 << tableDepth <= last)
+            tableDepth++;
+        palSize = tableDepth - 1;
         // get closest match to transparent color if specified
         if (hasTransparent) {
             transIndex = 0;
+        } else {
+            transIndex = -1;
         }
     }
 
     /**
-     * Extracts image pixels into byte array "pixels"
+     * Does nothing and is no longer called; {@link #analyzePixels()} reads frames of any size in place.
+     * @deprecated frames no longer need to be copied to the GIF's size before they are analyzed
      */
+    @Deprecated
     protected void getImagePixels() {
-        int w = image.getWidth();
-        int h = image.getHeight();
-        if ((w != width) || (h != height)) {
-            // create new image with right size/format
-            Pixmap temp = new Pixmap(width, height, Pixmap.Format.RGBA8888);
-            temp.drawPixmap(image, 0, 0);
-            image = temp;
-        }
     }
 
     /**
      * Writes Graphic Control Extension
      */
     protected void writeGraphicCtrlExt() throws IOException {
+        writeGraphicCtrlExt(-1);
+    }
+
+    /**
+     * Writes Graphic Control Extension with the given disposal method, or the default disposal if it is -1
+     */
+    protected void writeGraphicCtrlExt(int disposal) throws IOException {
         out.write(0x21); // extension introducer
         out.write(0xf9); // GCE label
         out.write(4); // data block size
@@ -490,7 +1451,9 @@ public class AnimatedGif implements AnimationWriter, Dithered {
             transp = 1;
             disp = 2; // force clear if using transparent color
         }
-        if (dispose >= 0) {
+        if (disposal >= 0) {
+            disp = disposal & 7; // chosen for this frame
+        } else if (dispose >= 0) {
             disp = dispose & 7; // user override
         }
         disp <<= 2;
@@ -501,7 +1464,7 @@ public class AnimatedGif implements AnimationWriter, Dithered {
                 0 | // 7 user input - 0 = none
                 transp); // 8 transparency flag
 
-        writeShort(Math.round(delay/10f)); // delay x 1/100 sec
+        writeShort(Math.round((frameDelay < 0 ? delay : frameDelay)/10f)); // delay x 1/100 sec
         out.write(transIndex); // transparent color index
         out.write(0); // block terminator
     }
@@ -510,14 +1473,21 @@ public class AnimatedGif implements AnimationWriter, Dithered {
      * Writes Image Descriptor
      */
     protected void writeImageDesc() throws IOException {
+        writeImageDesc(0, 0, width, height);
+    }
+
+    /**
+     * Writes Image Descriptor for a frame that covers only the given area, relative to the position
+     */
+    protected void writeImageDesc(int left, int top, int w, int h) throws IOException {
         out.write(0x2c); // image separator
-        writeShort(x); // image position x,y = 0,0
-        writeShort(y);
-        writeShort(width); // image size
-        writeShort(height);
+        writeShort(x + left); // image position x,y = 0,0
+        writeShort(y + top);
+        writeShort(w); // image size
+        writeShort(h);
         // packed fields
-        if (firstFrame) {
-            // no LCT - GCT is used for first (or only) frame
+        if (!needsLocalPalette()) {
+            // no LCT - GCT is used for first (or only) frame, and any frame with the same palette
             out.write(0);
         } else {
             // specify normal LCT
@@ -561,11 +1531,12 @@ public class AnimatedGif implements AnimationWriter, Dithered {
     }
 
     /**
-     * Writes color table
+     * Writes color table, with as many entries as palSize calls for
      */
     protected void writePalette() throws IOException {
-        out.write(colorTab, 0, colorTab.length);
-        int n = (3 * 256) - colorTab.length;
+        final int size = 6 << palSize, written = Math.min(colorTab.length, size);
+        out.write(colorTab, 0, written);
+        int n = size - written;
         for (int i = 0; i < n; i++) {
             out.write(0);
         }
@@ -575,8 +1546,15 @@ public class AnimatedGif implements AnimationWriter, Dithered {
      * Encodes and writes pixel data
      */
     protected void writePixels() throws IOException {
-        LZWEncoder encoder = new LZWEncoder(width, height, indexedPixels, colorDepth);
-        encoder.encode(out);
+        writePixels(indexedPixels, width, height);
+    }
+
+    /**
+     * Encodes and writes the given w by h pixel data
+     */
+    protected void writePixels(byte[] pixels, int w, int h) throws IOException {
+        encoder.setLossy(colorTab, 1 << colorDepth, transIndex, lossyThreshold);
+        encoder.encode(out, w, h, pixels, colorDepth);
     }
 
     /**
@@ -6,12 +6,23 @@ import com.badlogic.gdx.graphics.Pixmap;
 import com.badlogic.gdx.utils.Array;
 import com.badlogic.gdx.utils.ByteArray;
 import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.IntArray;
 import com.badlogic.gdx.utils.StreamUtils;
 
 import java.io.DataOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 
@@ -59,13 +70,43 @@ public class AnimatedPNG implements AnimationWriter, Disposable {
     static private final byte COMPRESSION_DEFLATE = 0;
     static private final byte FILTER_NONE = 0;
     static private final byte INTERLACE_NONE = 0;
-    static private final byte PAETH = 4;
 
     private final ChunkBuffer buffer;
+    private final DataChunkStream chunks;
     private final Deflater deflater;
+    private int compression = Deflater.DEFAULT_COMPRESSION;
+    private int deflateThreads = 1;
+    private ExecutorService deflatePool;
+    private int frameThreads = 1;
+    private int maxFramesInFlight = 2;
+    private ExecutorService framePool;
     private ByteArray lineOutBytes, curLineBytes, prevLineBytes;
     private boolean flipY = true;
-    private int lastLineLen;
+    private boolean frameDifferencing = false;
+    private FilterStrategy filterStrategy = FilterStrategy.PAETH;
+    private boolean duplicateMerging = false;
+
+    private ChannelOutputStream channelOutput;
+    private FrameSpool spool;
+    private int streamFps, streamWidth, streamHeight, streamSeq, streamFrames;
+    private final int[] pendingPlan = new int[6];
+    private final int[] pendingDelay = new int[2];
+    private int previousHash;
+    private final int[] streamBounds = new int[4];
+    private boolean hasPending;
+    private Pixmap previousFrame, fittedFrame;
+    private final ByteArray pendingFrame = new ByteArray(1024);
+    private final OutputStream pendingOutput = new OutputStream() {
+        @Override
+        public void write(int b) {
+            pendingFrame.add((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            pendingFrame.addAll(b, off, len);
+        }
+    };
 
     /**
      * Creates an AnimatedPNG writer with an initial buffer size of 16384. The buffer can resize later if needed.
@@ -82,6 +123,7 @@ public class AnimatedPNG implements AnimationWriter, Disposable {
      */
     public AnimatedPNG (int initialBufferSize) {
         buffer = new ChunkBuffer(initialBufferSize);
+        chunks = new DataChunkStream(initialBufferSize);
         deflater = new Deflater();
     }
 
@@ -92,12 +134,179 @@ public class AnimatedPNG implements AnimationWriter, Disposable {
         this.flipY = flipY;
     }
 
+    /**
+     * Returns true if this only writes the changed area of each frame; see {@link #setFrameDifferencing(boolean)}.
+     * @return true if frame differencing is enabled
+     */
+    public boolean isFrameDifferencing() {
+        return frameDifferencing;
+    }
+
+    /**
+     * If true, each frame after the first only stores the smallest rectangle containing every pixel that changed since
+     * the previous frame, drawn over the previous frame, and a frame identical to the previous one isn't stored at all;
+     * instead, the previous frame is shown for longer. The animation looks exactly the same either way, but for
+     * animations where only part of the image changes at a time (like recordings of a mostly-static UI), this makes
+     * files much smaller and writing much faster. Default is false, which writes every frame at full size.
+     * @param frameDifferencing true if only changed areas should be written
+     */
+    public void setFrameDifferencing(boolean frameDifferencing) {
+        this.frameDifferencing = frameDifferencing;
+    }
+
+    /**
+     * Returns true if runs of identical frames are written once; see {@link #setDuplicateMerging(boolean)}.
+     * @return true if duplicate frames are merged
+     */
+    public boolean isDuplicateMerging() {
+        return duplicateMerging;
+    }
+
+    /**
+     * If true, a frame with exactly the same pixels as the frame before it isn't written at all; instead, the frame
+     * before it is shown for longer, by adding the duplicate's delay to its own. Frames are compared by a cheap hash of
+     * their pixels first, and only frames with matching hashes are compared pixel by pixel, so this costs little for
+     * animations without duplicates. This helps recordings of paused games or idle UIs, or frames captured faster than
+     * their content changes. The animation looks exactly the same either way. Default is false.
+     * {@link #setFrameDifferencing(boolean)} already merges duplicate frames, so this only matters without it.
+     * @param duplicateMerging true if runs of identical frames should be written as one longer frame
+     */
+    public void setDuplicateMerging(boolean duplicateMerging) {
+        this.duplicateMerging = duplicateMerging;
+    }
+
     /**
      * Sets the deflate compression level. Default is {@link Deflater#DEFAULT_COMPRESSION}, which is currently 6 on all
      * Java versions in the 8 to 14 range, but is permitted to change.
      */
     public void setCompression(int level) {
         deflater.setLevel(level);
+        compression = level;
+    }
+
+    /**
+     * Gets the {@link FilterStrategy} this uses to filter each row before compressing it. Default is
+     * {@link FilterStrategy#PAETH}.
+     * @return the current FilterStrategy
+     */
+    public FilterStrategy getFilterStrategy() {
+        return filterStrategy;
+    }
+
+    /**
+     * Sets the {@link FilterStrategy} this uses to filter each row before compressing it. Default is
+     * {@link FilterStrategy#PAETH}; {@link FilterStrategy#ADAPTIVE} usually produces smaller files but takes longer,
+     * while {@link FilterStrategy#FAST} is quicker but usually produces larger files. If filterStrategy is null, this
+     * does nothing.
+     * @param filterStrategy which FilterStrategy to use for later writes; null is ignored
+     */
+    public void setFilterStrategy(FilterStrategy filterStrategy) {
+        if (filterStrategy != null)
+            this.filterStrategy = filterStrategy;
+    }
+
+    /**
+     * Gets the largest number of compressed bytes this puts in one IDAT or fdAT chunk, or 0 if each frame is written as
+     * a single chunk. Default is 0.
+     * @return the current maximum data chunk size, or 0 if unlimited
+     */
+    public int getDataChunkSize() {
+        return chunks.getChunkSize();
+    }
+
+    /**
+     * Sets the largest number of compressed bytes this puts in one IDAT or fdAT chunk. If size is positive, compressed
+     * image data is written to the output in chunks of at most that size as soon as each chunk fills, so memory use
+     * stays bounded no matter how large a frame is, and the output starts receiving a frame before it is fully
+     * compressed; 65536 is a good size. If size is 0 (the default), each frame is held in memory until it is fully
+     * compressed, then written as one chunk.
+     * @param size the maximum data size for an IDAT or fdAT chunk, in bytes, or 0 to not limit it
+     */
+    public void setDataChunkSize(int size) {
+        chunks.setChunkSize(size);
+    }
+
+    /**
+     * Gets how many threads this uses to compress each frame. Default is 1.
+     * @return how many threads compress each frame
+     */
+    public int getDeflateThreads() {
+        return deflateThreads;
+    }
+
+    /**
+     * Sets how many threads this uses to compress each frame. If threads is greater than 1, image data is split into
+     * 128 KB blocks that are compressed at the same time, with each block using the end of the previous block as a
+     * dictionary; the result is still one standard zlib stream per frame, and is usually only slightly larger than
+     * when using one thread. This only helps with large frames (at least several hundred KB of image data), and helps
+     * most at high compression levels. The worker threads are created when first needed and stopped by
+     * {@link #dispose()} or by setting this to 1.
+     * @param threads how many threads to compress with; 1 or less uses only the calling thread
+     */
+    public void setDeflateThreads(int threads) {
+        threads = Math.max(threads, 1);
+        if (threads != deflateThreads && deflatePool != null) {
+            deflatePool.shutdown();
+            deflatePool = null;
+        }
+        deflateThreads = threads;
+    }
+
+    /**
+     * Gets how many threads this uses to filter and compress different frames at the same time. Default is 1.
+     * @return how many frames can be compressed at once
+     */
+    public int getFrameThreads() {
+        return frameThreads;
+    }
+
+    /**
+     * Gets the most frames that can be compressed (or waiting to be written) at one time when
+     * {@link #getFrameThreads()} is greater than 1.
+     * @return the maximum number of frames in flight
+     */
+    public int getMaxFramesInFlight() {
+        return maxFramesInFlight;
+    }
+
+    /**
+     * Sets how many threads this uses to filter and compress different frames at the same time, each with its own
+     * Deflater. Finished frames are still written in order, by the thread that called write(). At most
+     * {@code threads * 2} frames are in flight (being compressed, or compressed and waiting to be written) at once;
+     * use {@link #setFrameThreads(int, int)} to change that limit. The output is the same as with one thread. When
+     * threads is greater than 1, {@link #setDeflateThreads(int)} is ignored, since frames are already compressed in
+     * parallel. The worker threads are created when first needed and stopped by {@link #dispose()} or by setting this
+     * to 1.
+     * @param threads how many frames to compress at once; 1 or less compresses frames one at a time
+     */
+    public void setFrameThreads(int threads) {
+        setFrameThreads(threads, Math.max(threads, 1) * 2);
+    }
+
+    /**
+     * Sets how many threads this uses to filter and compress different frames at the same time, each with its own
+     * Deflater, and how many frames can be in flight (being compressed, or compressed and waiting to be written) at
+     * once. A larger maxFramesInFlight keeps all threads busy when some frames take much longer than others, but can
+     * hold more compressed frames in memory. The output is the same as with one thread.
+     * @param threads how many frames to compress at once; 1 or less compresses frames one at a time
+     * @param maxFramesInFlight how many frames can be submitted but not yet written; will be at least threads
+     */
+    public void setFrameThreads(int threads, int maxFramesInFlight) {
+        threads = Math.max(threads, 1);
+        if (threads != frameThreads && framePool != null) {
+            framePool.shutdown();
+            framePool = null;
+        }
+        frameThreads = threads;
+        this.maxFramesInFlight = Math.max(maxFramesInFlight, threads);
+    }
+
+    private DeflaterOutputStream newDeflaterStream(OutputStream target) {
+        if (deflateThreads <= 1)
+            return new DeflaterOutputStream(target, deflater);
+        if (deflatePool == null)
+            deflatePool = Executors.newFixedThreadPool(deflateThreads, new DaemonThreadFactory());
+        return new ParallelDeflaterOutputStream(target, deflater, compression, deflateThreads, deflatePool);
     }
 
     /**
@@ -109,12 +318,7 @@ public class AnimatedPNG implements AnimationWriter, Disposable {
      */
     @Override
     public void write(FileHandle file, Array<Pixmap> frames) {
-        OutputStream output = file.write(false);
-        try {
-            write(output, frames, 60);
-        } finally {
-            StreamUtils.closeQuietly(output);
-        }
+        write(file, frames, 60);
     }
 
     /**
@@ -128,12 +332,40 @@ public class AnimatedPNG implements AnimationWriter, Disposable {
     public void write(FileHandle file, Array<Pixmap> frames, int fps) {
         OutputStream output = file.write(false);
         try {
-            write(output, frames, fps);
+            if (output instanceof FileOutputStream)
+                write(((FileOutputStream) output).getChannel(), frames, fps);
+            else
+                write(output, frames, fps);
         } finally {
             StreamUtils.closeQuietly(output);
         }
     }
 
+    /**
+     * Writes animated PNG data consisting of the given {@code frames} to the given {@code channel} without closing
+     * it, at {@code fps} frames per second. Small pieces of each chunk are gathered in a reusable direct buffer, and
+     * each frame's compressed data is sent to the channel along with them, so this makes far fewer copies and system
+     * calls than writing to an unbuffered stream. {@link #write(FileHandle, Array, int)} uses this for files.
+     * @param channel the channel to write to; the channel will not be closed
+     * @param frames an Array of Pixmap frames to write in order to the animated PNG
+     * @param fps how many frames per second the animated PNG should display
+     */
+    public void write(WritableByteChannel channel, Array<Pixmap> frames, int fps) {
+        ChannelOutputStream output = channelOutput(channel);
+        try {
+            write(output, frames, fps);
+        } finally {
+            output.setChannel(null);
+        }
+    }
+
+    private ChannelOutputStream channelOutput(WritableByteChannel channel) {
+        if (channelOutput == null)
+            channelOutput = new ChannelOutputStream(1 << 16);
+        channelOutput.setChannel(channel);
+        return channelOutput;
+    }
+
     /**
      * Writes animated PNG data consisting of the given {@code frames} to the given {@code output} stream without
      * closing the stream, at {@code fps} frames per second.
@@ -144,120 +376,47 @@ public class AnimatedPNG implements AnimationWriter, Disposable {
     @Override
     public void write(OutputStream output, Array<Pixmap> frames, int fps) {
         Pixmap pixmap = frames.first();
-        DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(buffer, deflater);
+        DeflaterOutputStream deflaterOutput = frameThreads > 1 ? null : newDeflaterStream(chunks);
         DataOutputStream dataOutput = new DataOutputStream(output);
         try {
-            dataOutput.write(SIGNATURE);
             final int width = pixmap.getWidth();
-            final int height = pixmap.getHeight();
-
-            buffer.writeInt(IHDR);
-            buffer.writeInt(width);
-            buffer.writeInt(height);
-            buffer.writeByte(8); // 8 bits per component.
-            buffer.writeByte(COLOR_ARGB);
-            buffer.writeByte(COMPRESSION_DEFLATE);
-            buffer.writeByte(FILTER_NONE);
-            buffer.writeByte(INTERLACE_NONE);
-            buffer.endChunk(dataOutput);
+            writeHeader(dataOutput, width, pixmap.getHeight());
+
+            final int[] plan = planFrames(frames);
 
             buffer.writeInt(acTL);
-            buffer.writeInt(frames.size);
+            buffer.writeInt(plan.length / 6);
             buffer.writeInt(0);
             buffer.endChunk(dataOutput);
 
-            int lineLen = width * 4;
-            byte[] lineOut, curLine, prevLine;
-            ByteBuffer pixels;
-            int oldPosition;
-            boolean rgba8888 = pixmap.getFormat() == Pixmap.Format.RGBA8888;
-            int seq = 0;
-            for (int i = 0; i < frames.size; i++) {
-
-                buffer.writeInt(fcTL);
-                buffer.writeInt(seq++);
-                buffer.writeInt(width);
-                buffer.writeInt(height);
-                buffer.writeInt(0);
-                buffer.writeInt(0);
-                buffer.writeShort(1);
-                buffer.writeShort(fps);
-                buffer.writeByte(0);
-                buffer.writeByte(0);
-                buffer.endChunk(dataOutput);
-
-                if (i == 0) {
-                    buffer.writeInt(IDAT);
-                } else {
-                    pixmap = frames.get(i);
-                    buffer.writeInt(fdAT);
-                    buffer.writeInt(seq++);
-                }
-                deflater.reset();
-
-                if (lineOutBytes == null) {
-                    lineOut = (lineOutBytes = new ByteArray(lineLen)).items;
-                    curLine = (curLineBytes = new ByteArray(lineLen)).items;
-                    prevLine = (prevLineBytes = new ByteArray(lineLen)).items;
-                } else {
-                    lineOut = lineOutBytes.ensureCapacity(lineLen);
-                    curLine = curLineBytes.ensureCapacity(lineLen);
-                    prevLine = prevLineBytes.ensureCapacity(lineLen);
-                    for (int ln = 0, n = lastLineLen; ln < n; ln++)
-                        prevLine[ln] = 0;
-                }
-                lastLineLen = lineLen;
-
-                pixels = pixmap.getPixels();
-                oldPosition = pixels.position();
-                for (int y = 0; y < height; y++) {
-                    int py = flipY ? (height - y - 1) : y;
-                    if (rgba8888) {
-                        pixels.position(py * lineLen);
-                        pixels.get(curLine, 0, lineLen);
-                    } else {
-                        for (int px = 0, x = 0; px < width; px++) {
-                            int pixel = pixmap.getPixel(px, py);
-                            curLine[x++] = (byte) ((pixel >> 24) & 0xff);
-                            curLine[x++] = (byte) ((pixel >> 16) & 0xff);
-                            curLine[x++] = (byte) ((pixel >> 8) & 0xff);
-                            curLine[x++] = (byte) (pixel & 0xff);
-                        }
-                    }
+            if (frameThreads > 1) {
+                writeFramesParallel(dataOutput, frames, plan, fps);
+            } else {
+                byte[] lineOut, curLine, prevLine;
+                int seq = 0;
+                for (int f = 0; f < plan.length; f += 6) {
+                    pixmap = frames.get(plan[f]);
+                    seq = writeFrameControl(dataOutput, seq, plan, f, fps);
+                    chunks.begin(dataOutput, f == 0 ? IDAT : fdAT, seq);
+                    deflater.reset();
 
-                    lineOut[0] = (byte) (curLine[0] - prevLine[0]);
-                    lineOut[1] = (byte) (curLine[1] - prevLine[1]);
-                    lineOut[2] = (byte) (curLine[2] - prevLine[2]);
-                    lineOut[3] = (byte) (curLine[3] - prevLine[3]);
-
-                    for (int x = 4; x < lineLen; x++) {
-                        int a = curLine[x - 4] & 0xff;
-                        int b = prevLine[x] & 0xff;
-                        int c = prevLine[x - 4] & 0xff;
-                        int p = a + b - c;
-                        int pa = p - a;
-                        if (pa < 0) pa = -pa;
-                        int pb = p - b;
-                        if (pb < 0) pb = -pb;
-                        int pc = p - c;
-                        if (pc < 0) pc = -pc;
-                        if (pa <= pb && pa <= pc)
-                            c = a;
-                        else if (pb <= pc) //
-                            c = b;
-                        lineOut[x] = (byte) (curLine[x] - c);
+                    int lineLen = plan[f + 3] * 4;
+                    if (lineOutBytes == null) {
+                        lineOut = (lineOutBytes = new ByteArray(width * 4)).items;
+                        curLine = (curLineBytes = new ByteArray(width * 4)).items;
+                        prevLine = (prevLineBytes = new ByteArray(width * 4)).items;
+                    } else {
+                        lineOut = lineOutBytes.ensureCapacity(width * 4);
+                        curLine = curLineBytes.ensureCapacity(width * 4);
+                        prevLine = prevLineBytes.ensureCapacity(width * 4);
+                        for (int ln = 0; ln < lineLen; ln++)
+                            prevLine[ln] = 0;
                     }
 
-                    deflaterOutput.write(PAETH);
-                    deflaterOutput.write(lineOut, 0, lineLen);
-
-                    byte[] temp = curLine;
-                    curLine = prevLine;
-                    prevLine = temp;
+                    filterFrame(pixmap, plan, f, deflaterOutput, lineOut, curLine, prevLine);
+                    deflaterOutput.finish();
+                    seq = chunks.end();
                 }
-                pixels.position(oldPosition);
-                deflaterOutput.finish();
-                buffer.endChunk(dataOutput);
             }
             buffer.writeInt(IEND);
             buffer.endChunk(dataOutput);
@@ -268,14 +427,437 @@ public class AnimatedPNG implements AnimationWriter, Disposable {
         }
     }
 
+    /**
+     * Starts writing an animated PNG to the given {@code file}, at {@code fps} frames per second, one frame at a time.
+     * Add frames in order with {@link #addFrame(Pixmap)}, then call {@link #finish()} to complete and close the file.
+     * Unlike {@link #write(FileHandle, Array, int)}, this doesn't need every frame to be available at once, so each
+     * Pixmap can be reused or disposed as soon as addFrame() returns. Frames are written straight to the file, and the
+     * frame count near the start of the file is filled in by finish().
+     * @param file the file location to write to; any existing file with this name will be overwritten
+     * @param fps how many frames per second the animated PNG should display
+     * @return false if the file couldn't be opened
+     */
+    public boolean start(FileHandle file, int fps) {
+        OutputStream output = null;
+        try {
+            output = file.write(false);
+            if (!(output instanceof FileOutputStream))
+                return start(new FrameSpool(output, null, true), fps);
+            FileChannel channel = ((FileOutputStream) output).getChannel();
+            return start(new FrameSpool(channelOutput(channel), channel, true), fps);
+        } catch (Exception e) {
+            Gdx.app.error("anim8", e.getMessage());
+            StreamUtils.closeQuietly(output);
+            return false;
+        }
+    }
+
+    /**
+     * Starts writing an animated PNG to the given {@code output} stream, at {@code fps} frames per second, one frame
+     * at a time. Add frames in order with {@link #addFrame(Pixmap)}, then call {@link #finish()} to complete the
+     * animation; the stream is not closed. Unlike {@link #write(OutputStream, Array, int)}, this doesn't need every
+     * frame to be available at once, so each Pixmap can be reused or disposed as soon as addFrame() returns. Because the
+     * frame count has to be written before any frames, compressed frames are kept in a temporary file until finish()
+     * copies them to the stream; {@link #start(FileHandle, int)} avoids that.
+     * @param output the stream to write to; the stream will not be closed
+     * @param fps how many frames per second the animated PNG should display
+     * @return false if the temporary file couldn't be created
+     */
+    public boolean start(OutputStream output, int fps) {
+        try {
+            return start(new FrameSpool(output, null, false), fps);
+        } catch (IOException e) {
+            Gdx.app.error("anim8", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Starts writing an animated PNG to the given {@code channel}, at {@code fps} frames per second, one frame at a
+     * time; see {@link #start(OutputStream, int)}. If channel is a FileChannel, frames are written straight to it and
+     * the frame count is filled in by {@link #finish()}, so it must not have been opened for appending; otherwise,
+     * frames are kept in a temporary file until finish(). The channel is not closed.
+     * @param channel the channel to write to; the channel will not be closed
+     * @param fps how many frames per second the animated PNG should display
+     * @return false if a needed temporary file couldn't be created
+     */
+    public boolean start(WritableByteChannel channel, int fps) {
+        try {
+            return start(new FrameSpool(channelOutput(channel),
+                    channel instanceof FileChannel ? (FileChannel) channel : null, false), fps);
+        } catch (IOException e) {
+            Gdx.app.error("anim8", e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean start(FrameSpool spool, int fps) {
+        if (this.spool != null)
+            this.spool.close();
+        this.spool = spool;
+        streamFps = fps;
+        streamSeq = 0;
+        streamFrames = 0;
+        hasPending = false;
+        return true;
+    }
+
+    /**
+     * Adds the next frame to the animation started by {@link #start(FileHandle, int)} or
+     * {@link #start(OutputStream, int)}, shown for one frame of time at the frame rate given to start(). A frame with a
+     * different size than the first is cropped or padded with transparent pixels to fit, keeping its top-left corner
+     * in place, as {@link PNG8#addFrame(Pixmap)} does. The frame is compressed right away, so it can be changed or
+     * disposed once this returns, but it is only written when the next frame is added (or the animation is
+     * finished), so that a following identical frame can extend how long it is shown when
+     * {@link #setFrameDifferencing(boolean)} or {@link #setDuplicateMerging(boolean)} is true. Frames are always compressed on this thread, regardless of
+     * {@link #getFrameThreads()}; {@link #getDeflateThreads()} still applies.
+     * @param frame the next frame of the animation
+     * @return true if successful
+     */
+    public boolean addFrame(Pixmap frame) {
+        return addFrame(frame, 1, streamFps);
+    }
+
+    /**
+     * Like {@link #addFrame(Pixmap)}, but shows this frame for {@code delay} milliseconds instead of one frame of time
+     * at the frame rate given to start(), so each frame can have its own duration.
+     * @param frame the next frame of the animation
+     * @param delay how many milliseconds to show this frame for; must be at most 65535
+     * @return true if successful
+     */
+    public boolean addFrame(Pixmap frame, int delay) {
+        return addFrame(frame, delay, 1000);
+    }
+
+    private boolean addFrame(Pixmap frame, int delayNum, int delayDen) {
+        if (spool == null || frame == null)
+            return false;
+        // a frame with a different size is cropped or padded with transparent pixels to the animation's size
+        if (hasPending && (frame.getWidth() != streamWidth || frame.getHeight() != streamHeight))
+            frame = fitFrame(frame, streamWidth, streamHeight);
+        final int width = frame.getWidth(), height = frame.getHeight();
+        try {
+            boolean whole = true;
+            if (!hasPending) {
+                streamWidth = width;
+                streamHeight = height;
+                writeHeader(spool.header, width, height);
+                spool.writeAnimationControl(buffer);
+            } else if (frameDifferencing) {
+                if (!FrameDifference.changedArea(previousFrame, frame, flipY, streamBounds)) {
+                    FrameSpool.addDelay(pendingDelay, delayNum, delayDen);
+                    return true;
+                }
+                whole = false;
+                writePending();
+            } else if (duplicateMerging && FrameDifference.hash(frame) == previousHash
+                    && FrameDifference.identical(previousFrame, frame)) {
+                FrameSpool.addDelay(pendingDelay, delayNum, delayDen);
+                return true;
+            } else {
+                writePending();
+            }
+            pendingPlan[1] = whole ? 0 : streamBounds[0];
+            pendingPlan[2] = whole ? 0 : streamBounds[1];
+            pendingPlan[3] = whole ? width : streamBounds[2];
+            pendingPlan[4] = whole ? height : streamBounds[3];
+            pendingDelay[0] = delayNum;
+            pendingDelay[1] = delayDen;
+
+            pendingFrame.clear();
+            deflater.reset();
+            DeflaterOutputStream deflaterOutput = newDeflaterStream(pendingOutput);
+            int lineLen = pendingPlan[3] * 4;
+            byte[] lineOut, curLine, prevLine;
+            if (lineOutBytes == null) {
+                lineOut = (lineOutBytes = new ByteArray(width * 4)).items;
+                curLine = (curLineBytes = new ByteArray(width * 4)).items;
+                prevLine = (prevLineBytes = new ByteArray(width * 4)).items;
+            } else {
+                lineOut = lineOutBytes.ensureCapacity(width * 4);
+                curLine = curLineBytes.ensureCapacity(width * 4);
+                prevLine = prevLineBytes.ensureCapacity(width * 4);
+                for (int ln = 0; ln < lineLen; ln++)
+                    prevLine[ln] = 0;
+            }
+            filterFrame(frame, pendingPlan, 0, deflaterOutput, lineOut, curLine, prevLine);
+            deflaterOutput.finish();
+            hasPending = true;
+
+            if (frameDifferencing || duplicateMerging) {
+                if (previousFrame == null) {
+                    previousFrame = new Pixmap(width, height, Pixmap.Format.RGBA8888);
+                    previousFrame.setBlending(Pixmap.Blending.None);
+                }
+                previousFrame.drawPixmap(frame, 0, 0);
+                previousHash = FrameDifference.hash(previousFrame);
+            }
+            return true;
+        } catch (IOException e) {
+            Gdx.app.error("anim8", e.getMessage());
+            return false;
+        }
+    }
+
+    private Pixmap fitFrame(Pixmap frame, int width, int height) {
+        if (fittedFrame == null || fittedFrame.getWidth() != width || fittedFrame.getHeight() != height) {
+            if (fittedFrame != null)
+                fittedFrame.dispose();
+            fittedFrame = new Pixmap(width, height, Pixmap.Format.RGBA8888);
+            fittedFrame.setBlending(Pixmap.Blending.None);
+        }
+        fittedFrame.setColor(0);
+        fittedFrame.fill();
+        fittedFrame.drawPixmap(frame, 0, 0);
+        return fittedFrame;
+    }
+
+    private void writePending() throws IOException {
+        pendingPlan[5] = pendingDelay[0];
+        streamSeq = writeFrameControl(spool.frames, streamSeq, pendingPlan, 0, pendingDelay[1]);
+        chunks.begin(spool.frames, streamFrames == 0 ? IDAT : fdAT, streamSeq);
+        chunks.write(pendingFrame.items, 0, pendingFrame.size);
+        streamSeq = chunks.end();
+        streamFrames++;
+    }
+
+    /**
+     * Writes the last frame added with {@link #addFrame(Pixmap)} and completes the animation started by
+     * {@link #start(FileHandle, int)} or {@link #start(OutputStream, int)}, closing the file if one was given. If no
+     * frames were added, nothing useful is written and this returns false.
+     * @return true if the whole animation was written successfully
+     */
+    public boolean finish() {
+        if (spool == null)
+            return false;
+        boolean ok = hasPending;
+        try {
+            if (hasPending) {
+                writePending();
+                spool.finish(buffer, streamFrames);
+            }
+        } catch (IOException e) {
+            Gdx.app.error("anim8", e.getMessage());
+            ok = false;
+        } finally {
+            spool.close();
+            spool = null;
+            hasPending = false;
+            if (channelOutput != null)
+                channelOutput.setChannel(null);
+            if (previousFrame != null) {
+                previousFrame.dispose();
+                previousFrame = null;
+            }
+            if (fittedFrame != null) {
+                fittedFrame.dispose();
+                fittedFrame = null;
+            }
+        }
+        return ok;
+    }
+
+    private void writeHeader(DataOutputStream dataOutput, int width, int height) throws IOException {
+        dataOutput.write(SIGNATURE);
+
+        buffer.writeInt(IHDR);
+        buffer.writeInt(width);
+        buffer.writeInt(height);
+        buffer.writeByte(8); // 8 bits per component.
+        buffer.writeByte(COLOR_ARGB);
+        buffer.writeByte(COMPRESSION_DEFLATE);
+        buffer.writeByte(FILTER_NONE);
+        buffer.writeByte(INTERLACE_NONE);
+        buffer.endChunk(dataOutput);
+    }
+
+    /**
+     * Decides which frames to write and which part of each to write. Returns 6 ints per frame that will be written: the
+     * index of the frame in {@code frames}, then the x, y, width, and height of the area to write (in output
+     * coordinates), then how many frames of time it should be shown for. Unless {@link #setFrameDifferencing(boolean)}
+     * or {@link #setDuplicateMerging(boolean)} has been set to true, this is just every frame at full size, each shown
+     * for one frame of time.
+     */
+    private int[] planFrames(Array<Pixmap> frames) {
+        final int width = frames.first().getWidth(), height = frames.first().getHeight();
+        final IntArray plan = new IntArray(frames.size * 6);
+        final int[] bounds = new int[4];
+        if (!frameDifferencing && duplicateMerging) {
+            final IntArray runs = FrameDifference.distinctFrames(frames);
+            for (int r = 0; r < runs.size; r += 2)
+                plan.addAll(runs.get(r), 0, 0, width, height, runs.get(r + 1));
+            return plan.toArray();
+        }
+        plan.addAll(0, 0, 0, width, height, 1);
+        for (int i = 1; i < frames.size; i++) {
+            if (!frameDifferencing)
+                plan.addAll(i, 0, 0, width, height, 1);
+            else if (FrameDifference.changedArea(frames.get(i - 1), frames.get(i), flipY, bounds))
+                plan.addAll(i, bounds[0], bounds[1], bounds[2], bounds[3], 1);
+            else
+                plan.incr(plan.size - 1, 1);
+        }
+        return plan.toArray();
+    }
+
+    private int writeFrameControl(DataOutputStream dataOutput, int seq, int[] plan, int f, int fps)
+            throws IOException {
+        buffer.writeInt(fcTL);
+        buffer.writeInt(seq++);
+        buffer.writeInt(plan[f + 3]);
+        buffer.writeInt(plan[f + 4]);
+        buffer.writeInt(plan[f + 1]);
+        buffer.writeInt(plan[f + 2]);
+        buffer.writeShort(plan[f + 5]);
+        buffer.writeShort(fps);
+        buffer.writeByte(0);
+        buffer.writeByte(0);
+        buffer.endChunk(dataOutput);
+        return seq;
+    }
+
+    /**
+     * Filters every row of the area of pixmap given by the frame starting at {@code f} in plan (see
+     * {@link #planFrames(Array)}) with the current {@link FilterStrategy}, and writes the filtered rows to out. The
+     * three line arrays must each have room for a row of the area, and prevLine must be all 0. This only reads from
+     * pixmap (its pixel buffer's position is left alone), so different threads can call this on the same Pixmap.
+     */
+    private void filterFrame(Pixmap pixmap, int[] plan, int f, OutputStream out, byte[] lineOut, byte[] curLine,
+                             byte[] prevLine) throws IOException {
+        final int startX = plan[f + 1], startY = plan[f + 2];
+        final int width = plan[f + 3];
+        final int height = plan[f + 4];
+        final int lineLen = width * 4;
+        final int fullHeight = pixmap.getHeight();
+        final int fullLineLen = pixmap.getWidth() * 4;
+        final boolean rgba8888 = pixmap.getFormat() == Pixmap.Format.RGBA8888;
+        ByteBuffer pixels = pixmap.getPixels().duplicate();
+        for (int y = 0; y < height; y++) {
+            int py = flipY ? (fullHeight - (startY + y) - 1) : startY + y;
+            if (rgba8888) {
+                pixels.position(py * fullLineLen + startX * 4);
+                pixels.get(curLine, 0, lineLen);
+            } else {
+                for (int px = startX, x = 0; x < lineLen; px++) {
+                    int pixel = pixmap.getPixel(px, py);
+                    curLine[x++] = (byte) ((pixel >> 24) & 0xff);
+                    curLine[x++] = (byte) ((pixel >> 16) & 0xff);
+                    curLine[x++] = (byte) ((pixel >> 8) & 0xff);
+                    curLine[x++] = (byte) (pixel & 0xff);
+                }
+            }
+
+            out.write(filterStrategy.filter(curLine, prevLine, lineOut, lineLen, 4, y == 0));
+            out.write(lineOut, 0, lineLen);
+
+            byte[] temp = curLine;
+            curLine = prevLine;
+            prevLine = temp;
+        }
+    }
+
+    /**
+     * Filters and compresses frames on {@link #getFrameThreads()} threads, each frame with its own Deflater, while this
+     * thread writes the finished frames in order. No more than {@link #getMaxFramesInFlight()} frames are submitted
+     * but not yet written at any time, which bounds how much compressed data waits in memory.
+     */
+    private void writeFramesParallel(DataOutputStream dataOutput, final Array<Pixmap> frames, final int[] plan,
+                                     int fps) throws IOException {
+        if (framePool == null)
+            framePool = Executors.newFixedThreadPool(frameThreads, new DaemonThreadFactory());
+        final int maxInFlight = Math.max(maxFramesInFlight, 1);
+        ArrayDeque<Future<ByteArray>> pending = new ArrayDeque<>(maxInFlight);
+        int seq = 0, next = 0;
+        for (int f = 0; f < plan.length; f += 6) {
+            while (next < plan.length && pending.size() < maxInFlight) {
+                final Pixmap frame = frames.get(plan[next]);
+                final int start = next;
+                next += 6;
+                pending.addLast(framePool.submit(new Callable<ByteArray>() {
+                    @Override
+                    public ByteArray call() throws IOException {
+                        return compressFrame(frame, plan, start);
+                    }
+                }));
+            }
+            ByteArray compressed;
+            try {
+                compressed = pending.removeFirst().get();
+            } catch (InterruptedException e) {
+                for (Future<ByteArray> future : pending)
+                    future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(e.getMessage());
+            } catch (ExecutionException e) {
+                for (Future<ByteArray> future : pending)
+                    future.cancel(true);
+                throw new IOException(e.getCause());
+            }
+            seq = writeFrameControl(dataOutput, seq, plan, f, fps);
+            chunks.begin(dataOutput, f == 0 ? IDAT : fdAT, seq);
+            chunks.write(compressed.items, 0, compressed.size);
+            seq = chunks.end();
+        }
+    }
+
+    private ByteArray compressFrame(Pixmap pixmap, int[] plan, int f) throws IOException {
+        final int lineLen = plan[f + 3] * 4;
+        final ByteArray compressed = new ByteArray(Math.max(lineLen * plan[f + 4] >>> 2, 64));
+        OutputStream collector = new OutputStream() {
+            @Override
+            public void write(int b) {
+                compressed.add((byte) b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                compressed.addAll(b, off, len);
+            }
+        };
+        Deflater frameDeflater = new Deflater(compression);
+        try {
+            DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(collector, frameDeflater);
+            filterFrame(pixmap, plan, f, deflaterOutput, new byte[lineLen], new byte[lineLen], new byte[lineLen]);
+            deflaterOutput.finish();
+        } finally {
+            frameDeflater.end();
+        }
+        return compressed;
+    }
+
     /**
      * Disposal should probably be done explicitly, especially if using JRE versions after 8.
      * In Java 8 and earlier, you could rely on finalize() doing what this does, but that isn't
      * a safe assumption in Java 9 and later. Note, don't use the same AnimatedPNG object after you call
-     * this method; you'll need to make a new one if you need to write again after disposing.
+     * this method; you'll need to make a new one if you need to write again after disposing. If an animation was
+     * started with {@link #start(OutputStream, int)} but not finished, it is abandoned and its output is closed.
      */
     @Override
     public void dispose() {
         deflater.end();
+        if (spool != null) {
+            // an animation was started but never finished, so its output and any spool file are closed here
+            spool.close();
+            spool = null;
+            hasPending = false;
+            if (channelOutput != null)
+                channelOutput.setChannel(null);
+        }
+        if (previousFrame != null) {
+            previousFrame.dispose();
+            previousFrame = null;
+        }
+        if (fittedFrame != null) {
+            fittedFrame.dispose();
+            fittedFrame = null;
+        }
+        if (deflatePool != null) {
+            deflatePool.shutdown();
+            deflatePool = null;
+        }
+        if (framePool != null) {
+            framePool.shutdown();
+            framePool = null;
+        }
     }
 }
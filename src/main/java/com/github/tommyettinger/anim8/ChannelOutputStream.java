@@ -0,0 +1,111 @@
+package com.github.tommyettinger.anim8;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An OutputStream that writes to a WritableByteChannel through a reusable direct ByteBuffer. Small writes, like the
+ * length, type, and CRC of a PNG chunk, only touch the buffer. A write too large for the buffer is sent to the channel
+ * together with whatever is already buffered, using one gathering write if the channel supports it, so a chunk header
+ * and the data after it reach the channel in a single call without being copied into the buffer first. The channel
+ * can be changed with {@link #setChannel(WritableByteChannel)}, so one buffer serves every file a writer produces.
+ */
+final class ChannelOutputStream extends OutputStream {
+    private final ByteBuffer buffer;
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private WritableByteChannel channel;
+
+    /**
+     * @param size how many bytes the direct buffer holds
+     */
+    ChannelOutputStream(int size) {
+        buffer = ByteBuffer.allocateDirect(Math.max(size, 64));
+    }
+
+    /**
+     * Changes the channel this writes to, discarding anything still in the buffer. Call {@link #flush()} first to keep
+     * buffered bytes. Setting this to null releases the previous channel without closing it.
+     * @param channel the WritableByteChannel to write to; may be null
+     */
+    void setChannel(WritableByteChannel channel) {
+        this.channel = channel;
+        buffer.clear();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining())
+            flushBuffer();
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len <= buffer.remaining()) {
+            buffer.put(b, off, len);
+            return;
+        }
+        if (len < buffer.capacity()) {
+            flushBuffer();
+            buffer.put(b, off, len);
+            return;
+        }
+        final ByteBuffer data = ByteBuffer.wrap(b, off, len);
+        buffer.flip();
+        if (buffer.hasRemaining() && channel instanceof GatheringByteChannel) {
+            gather[0] = buffer;
+            gather[1] = data;
+            try {
+                // the buffered bytes come first, so they are all written once data is
+                while (data.hasRemaining()) {
+                    ((GatheringByteChannel) channel).write(gather);
+                }
+            } finally {
+                gather[0] = gather[1] = null;
+            }
+        } else {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Writes everything in the buffer to the channel. Channels don't buffer anything themselves, so nothing else needs
+     * to be flushed.
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    /**
+     * Writes everything in the buffer to the channel, then closes the channel and releases it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel == null)
+            return;
+        try {
+            flushBuffer();
+        } finally {
+            channel.close();
+            setChannel(null);
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,21 @@
+package com.github.tommyettinger.anim8;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes daemon threads for the worker pools that writers use when encoding in parallel, so an idle pool that was never
+ * shut down can't keep an application from exiting.
+ */
+class DaemonThreadFactory implements ThreadFactory {
+    private static final AtomicInteger poolCount = new AtomicInteger();
+    private final String prefix = "anim8-" + poolCount.incrementAndGet() + "-";
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, prefix + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
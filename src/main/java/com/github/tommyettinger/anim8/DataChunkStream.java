@@ -0,0 +1,125 @@
+package com.github.tommyettinger.anim8;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * An OutputStream that wraps compressed image data in IDAT or fdAT chunks and writes them to a target stream. If a
+ * chunk size has been set with {@link #setChunkSize(int)}, each chunk is written as soon as it fills up, so only one
+ * chunk's worth of data is ever held in memory and the target receives data while a frame is still being compressed.
+ * Otherwise, all data between {@link #begin(DataOutputStream, int, int)} and {@link #end()} is buffered and written as
+ * one chunk, the same as {@link ChunkBuffer} does.
+ */
+class DataChunkStream extends OutputStream {
+    static private final int fdAT = 0x66644154;
+
+    private final CRC32 crc = new CRC32();
+    private final byte[] header = new byte[8];
+    private byte[] data;
+    private int chunkSize;
+    private DataOutputStream target;
+    private int chunkType, sequence, count;
+    private boolean emitted;
+
+    DataChunkStream(int initialSize) {
+        data = new byte[Math.max(initialSize, 64)];
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the most data bytes each chunk can hold, or 0 to put everything between begin() and end() in one chunk.
+     * @param chunkSize the maximum data length for one chunk, or 0 to not limit it
+     */
+    void setChunkSize(int chunkSize) {
+        this.chunkSize = Math.max(chunkSize, 0);
+        if (this.chunkSize > 0 && data.length != this.chunkSize)
+            data = new byte[this.chunkSize];
+    }
+
+    /**
+     * Starts a run of chunks with the given type. If chunkType is fdAT, each chunk gets its own sequence number, counting
+     * up from {@code sequence}; otherwise sequence is ignored.
+     * @param target where finished chunks are written
+     * @param chunkType should be IDAT or fdAT
+     * @param sequence the sequence number for the first fdAT chunk
+     */
+    void begin(DataOutputStream target, int chunkType, int sequence) {
+        this.target = target;
+        this.chunkType = chunkType;
+        this.sequence = sequence;
+        count = 0;
+        emitted = false;
+    }
+
+    /**
+     * Writes any remaining data as a chunk. This always writes at least one chunk, even if no data was written.
+     * @return the sequence number that should be used for the next chunk after this run
+     * @throws IOException if the target throws one
+     */
+    int end() throws IOException {
+        if (count > 0 || !emitted)
+            emit();
+        target = null;
+        return sequence;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == data.length)
+            makeRoom();
+        data[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == data.length)
+                makeRoom();
+            int n = Math.min(len, data.length - count);
+            System.arraycopy(b, off, data, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void makeRoom() throws IOException {
+        if (chunkSize > 0)
+            emit();
+        else {
+            byte[] next = new byte[data.length << 1];
+            System.arraycopy(data, 0, next, 0, count);
+            data = next;
+        }
+    }
+
+    private void emit() throws IOException {
+        int headerLen = 4;
+        header[0] = (byte) (chunkType >>> 24);
+        header[1] = (byte) (chunkType >>> 16);
+        header[2] = (byte) (chunkType >>> 8);
+        header[3] = (byte) chunkType;
+        if (chunkType == fdAT) {
+            header[4] = (byte) (sequence >>> 24);
+            header[5] = (byte) (sequence >>> 16);
+            header[6] = (byte) (sequence >>> 8);
+            header[7] = (byte) sequence;
+            headerLen = 8;
+            sequence++;
+        }
+        crc.reset();
+        crc.update(header, 0, headerLen);
+        crc.update(data, 0, count);
+        target.writeInt(count + headerLen - 4);
+        target.write(header, 0, headerLen);
+        target.write(data, 0, count);
+        target.writeInt((int) crc.getValue());
+        count = 0;
+        emitted = true;
+    }
+}
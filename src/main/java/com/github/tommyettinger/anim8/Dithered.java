@@ -41,10 +41,13 @@ public interface Dithered {
      * GRADIENT_NOISE maintain the approximate lightness balance of the original image, PATTERN may lighten mid-tones
      * somewhat to make the gradient smoother. All of these algorithms are suitable for animations; that is, they don't rely
      * on error diffusion between pixels. NONE is fastest, PATTERN is slowest, and GRADIENT_NOISE is in-between.
+     * ADAPTIVE_PATTERN looks like PATTERN on gradients, but skips dithering for colors that are already in the palette
+     * and reuses its work across runs of identical pixels, so it is much faster than PATTERN on pixel art, UI, and
+     * other images with large flat areas; it is also suitable for animations.
      * <br>
      * Created by Tommy Ettinger on 6/6/2020.
      */
     enum DitherAlgorithm {
-        NONE, GRADIENT_NOISE, PATTERN
+        NONE, GRADIENT_NOISE, PATTERN, ADAPTIVE_PATTERN
     }
 }
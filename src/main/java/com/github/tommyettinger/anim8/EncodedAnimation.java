@@ -0,0 +1,458 @@
+package com.github.tommyettinger.anim8;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.StreamUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.CRC32;
+
+/**
+ * An animated PNG or GIF that has already been encoded, which can be written again with different timing or a
+ * different loop count without quantizing or compressing any frames again. Only the delay of each frame (in the fcTL
+ * chunks of an APNG, or the graphic control extensions of a GIF) and the loop count (in acTL, or the NETSCAPE2.0
+ * extension) change; everything else, including all of the compressed image data, is copied as-is. This is meant for
+ * exporting the same animation at several frame rates:
+ * <pre>
+ * EncodedAnimation anim = EncodedAnimation.encode(new AnimatedGif(), frames, 30);
+ * anim.write(Gdx.files.local("anim30.gif"));
+ * anim.setFrameRate(15);
+ * anim.write(Gdx.files.local("anim15.gif"));
+ * </pre>
+ * Any animated PNG can be read, as can any GIF where every frame has a graphic control extension, which includes
+ * everything {@link AnimatedPNG}, {@link PNG8}, and {@link AnimatedGif} write.
+ */
+public class EncodedAnimation {
+    static private final byte[] PNG_SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    static private final int acTL = 0x6163544C, fcTL = 0x6663544C, IEND = 0x49454E44;
+
+    private final byte[] data;
+    private final boolean png;
+    private final int frameCount;
+    /**
+     * For an APNG, where the type of each fcTL chunk starts; for a GIF, where the delay in each graphic control
+     * extension is.
+     */
+    private final int[] delayOffsets;
+    /**
+     * The delay of each frame, as a fraction of a second; a GIF always uses a denominator of 100, and an APNG uses a
+     * denominator of 0 to mean 100.
+     */
+    private final int[] delayNumerators, delayDenominators;
+    /**
+     * For an APNG, where the type of the acTL chunk starts; for a GIF, where the NETSCAPE2.0 extension starts, or -1 if
+     * there isn't one.
+     */
+    private int loopStart = -1;
+    /**
+     * For a GIF, where the NETSCAPE2.0 extension ends (or where one would go, if there isn't one), which is right
+     * after the global color table in files AnimatedGif writes.
+     */
+    private int loopEnd;
+    private int loopCount;
+    private int frameRate;
+    private final CRC32 crc = new CRC32();
+    private final byte[] chunk = new byte[30];
+
+    private EncodedAnimation(byte[] data, boolean png, int frameCount) {
+        this.data = data;
+        this.png = png;
+        this.frameCount = frameCount;
+        delayOffsets = new int[frameCount];
+        delayNumerators = new int[frameCount];
+        delayDenominators = new int[frameCount];
+    }
+
+    /**
+     * Encodes frames with the given writer (such as an {@link AnimatedGif}, {@link AnimatedPNG}, or {@link PNG8}, with
+     * any settings it should use) at the given frame rate, keeping the encoded animation in memory so it can be
+     * written with other frame rates using {@link #setFrameRate(int)}.
+     * @param writer the AnimationWriter to encode frames with
+     * @param frames the frames of the animation, in order
+     * @param fps how many frames per second the animation should run at
+     * @return the encoded animation
+     */
+    public static EncodedAnimation encode(AnimationWriter writer, Array<Pixmap> frames, int fps) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(1 << 16);
+        writer.write(output, frames, fps);
+        EncodedAnimation animation = read(output.toByteArray());
+        animation.frameRate = fps;
+        return animation;
+    }
+
+    /**
+     * Reads an animated PNG or GIF from file; see {@link #read(byte[])}.
+     * @param file a FileHandle holding an animated PNG or GIF
+     * @return the encoded animation
+     * @throws IllegalArgumentException if file doesn't hold an animated PNG or a GIF this can read
+     */
+    public static EncodedAnimation read(FileHandle file) {
+        return read(file.readBytes());
+    }
+
+    /**
+     * Reads an animated PNG or GIF that is already encoded in data. The array is kept as it is, not copied, so it must
+     * not be changed while this is in use. The frame rate isn't stored in either format, so unlike
+     * {@link #encode(AnimationWriter, Array, int)}, {@link #setFrameRate(int)} gives every frame the same delay.
+     * @param data the bytes of an animated PNG or GIF
+     * @return the encoded animation
+     * @throws IllegalArgumentException if data doesn't hold an animated PNG or a GIF this can read
+     */
+    public static EncodedAnimation read(byte[] data) {
+        if (startsWith(data, PNG_SIGNATURE))
+            return readPNG(data);
+        if (data.length >= 13 && data[0] == 'G' && data[1] == 'I' && data[2] == 'F')
+            return readGif(data);
+        throw new IllegalArgumentException("Not a PNG or GIF file");
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 255) << 24 | (data[offset + 1] & 255) << 16 | (data[offset + 2] & 255) << 8
+                | (data[offset + 3] & 255);
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return (data[offset] & 255) << 8 | (data[offset + 1] & 255);
+    }
+
+    private static EncodedAnimation readPNG(byte[] data) {
+        int frames = 0, animationControl = -1;
+        for (int pos = PNG_SIGNATURE.length; pos + 12 <= data.length; ) {
+            final int length = readInt(data, pos), type = readInt(data, pos + 4);
+            if (length < 0 || pos + 12 + (long) length > data.length)
+                throw new IllegalArgumentException("Truncated PNG chunk at byte " + pos);
+            if (type == acTL && length == 8)
+                animationControl = pos + 4;
+            else if (type == fcTL && length == 26)
+                frames++;
+            else if (type == IEND)
+                break;
+            pos += 12 + length;
+        }
+        if (animationControl < 0)
+            throw new IllegalArgumentException("PNG file isn't animated");
+        EncodedAnimation animation = new EncodedAnimation(data, true, frames);
+        animation.loopStart = animationControl;
+        animation.loopCount = readInt(data, animationControl + 8);
+        for (int pos = PNG_SIGNATURE.length, f = 0; f < frames; ) {
+            final int length = readInt(data, pos);
+            if (readInt(data, pos + 4) == fcTL && length == 26) {
+                animation.delayOffsets[f] = pos + 4;
+                animation.delayNumerators[f] = readShort(data, pos + 28);
+                animation.delayDenominators[f] = readShort(data, pos + 30);
+                f++;
+            }
+            pos += 12 + length;
+        }
+        return animation;
+    }
+
+    private static EncodedAnimation readGif(byte[] data) {
+        // skips the header and logical screen descriptor, then the global color table, if there is one
+        int pos = 13;
+        if ((data[10] & 0x80) != 0)
+            pos += 3 << ((data[10] & 7) + 1);
+        final int colorTableEnd = pos;
+        int loopStart = -1, loopEnd = colorTableEnd, pendingDelay = -1;
+        int[] delays = new int[16];
+        int frames = 0;
+        try {
+            while (data[pos] != 0x3B) {
+                if (data[pos] == 0x21) {
+                    final int start = pos, label = data[pos + 1] & 255;
+                    if (label == 0xF9 && data[pos + 2] == 4)
+                        pendingDelay = pos + 4;
+                    // only a NETSCAPE2.0 extension before any frame is treated as the loop count
+                    final boolean loop = frames == 0 && pendingDelay < 0 && label == 0xFF && data[pos + 2] == 11 && data[pos + 14] == 3
+                            && data[pos + 15] == 1 && new String(data, pos + 3, 11, "US-ASCII").equals("NETSCAPE2.0");
+                    pos = skipSubBlocks(data, pos + 2);
+                    if (loop) {
+                        loopStart = start;
+                        loopEnd = pos;
+                    }
+                } else if (data[pos] == 0x2C) {
+                    if (pendingDelay < 0)
+                        throw new IllegalArgumentException("GIF frame " + frames + " has no graphic control extension");
+                    if (frames == delays.length) {
+                        int[] larger = new int[frames << 1];
+                        System.arraycopy(delays, 0, larger, 0, frames);
+                        delays = larger;
+                    }
+                    delays[frames++] = pendingDelay;
+                    pendingDelay = -1;
+                    final int packed = data[pos + 9];
+                    pos += 10;
+                    if ((packed & 0x80) != 0)
+                        pos += 3 << ((packed & 7) + 1);
+                    pos = skipSubBlocks(data, pos + 1); // skips the LZW minimum code size and then the image data
+                } else
+                    throw new IllegalArgumentException("Unknown GIF block at byte " + pos);
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated GIF file");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        EncodedAnimation animation = new EncodedAnimation(data, false, frames);
+        animation.loopStart = loopStart;
+        animation.loopEnd = loopEnd;
+        if (loopStart < 0)
+            animation.loopCount = 1;
+        else {
+            // NETSCAPE2.0 stores how many extra times the animation plays, with 0 still meaning forever
+            final int extra = (data[loopStart + 16] & 255) | (data[loopStart + 17] & 255) << 8;
+            animation.loopCount = extra == 0 ? 0 : extra + 1;
+        }
+        for (int f = 0; f < frames; f++) {
+            animation.delayOffsets[f] = delays[f];
+            animation.delayNumerators[f] = (data[delays[f]] & 255) | (data[delays[f] + 1] & 255) << 8;
+            animation.delayDenominators[f] = 100;
+        }
+        return animation;
+    }
+
+    /**
+     * Given the position of the first sub-block size byte, returns the position just after the block terminator.
+     */
+    private static int skipSubBlocks(byte[] data, int pos) {
+        int size;
+        while ((size = data[pos] & 255) != 0) {
+            pos += size + 1;
+        }
+        return pos + 1;
+    }
+
+    /**
+     * Returns true if this is an animated PNG, or false if it is a GIF.
+     * @return true if this is an animated PNG
+     */
+    public boolean isPNG() {
+        return png;
+    }
+
+    /**
+     * Gets how many frames are written to the file, which can be fewer than were given to the writer if it merged
+     * duplicate frames.
+     * @return the number of frames
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Gets how long the given frame is shown for, rounded to the nearest millisecond.
+     * @param frame the index of a frame, from 0 to {@link #getFrameCount()} - 1
+     * @return the delay of that frame, in milliseconds
+     */
+    public int getDelay(int frame) {
+        final int denominator = delayDenominators[frame];
+        return (int) Math.round(delayNumerators[frame] * 1000.0 / (denominator == 0 ? 100 : denominator));
+    }
+
+    /**
+     * Sets how long the given frame is shown for. A GIF stores delays in hundredths of a second, so the delay is
+     * rounded to the nearest 10 milliseconds there.
+     * @param frame the index of a frame, from 0 to {@link #getFrameCount()} - 1
+     * @param delay how many milliseconds to show the frame for
+     */
+    public void setDelay(int frame, int delay) {
+        setDelay(frame, Math.max(delay, 0), 1000);
+    }
+
+    /**
+     * Sets how long each frame is shown for, in milliseconds; see {@link #setDelay(int, int)}.
+     * @param delays the delay of each frame in milliseconds, starting with the first; extra items are ignored
+     */
+    public void setDelays(int... delays) {
+        for (int f = 0, n = Math.min(delays.length, frameCount); f < n; f++) {
+            setDelay(f, delays[f]);
+        }
+    }
+
+    /**
+     * Gets the frame rate the current delays are based on, as given to {@link #encode(AnimationWriter, Array, int)}
+     * or {@link #setFrameRate(int)}, or 0 if that isn't known.
+     * @return the current frame rate, or 0 if it isn't known
+     */
+    public int getFrameRate() {
+        return frameRate;
+    }
+
+    /**
+     * Changes the frame rate of the animation. If the frame rate it was encoded at is known (because this was made by
+     * {@link #encode(AnimationWriter, Array, int)}), each frame keeps the number of frames of time it lasts, so frames
+     * that were merged because they were identical stay as long as the frames they replaced, and each delay is the same
+     * as encoding the animation at fps would have given it. Otherwise, every frame is shown for 1/fps seconds.
+     * @param fps how many frames per second the animation should run at
+     */
+    public void setFrameRate(int fps) {
+        if (fps <= 0)
+            return;
+        final int previous = frameRate;
+        for (int f = 0; f < frameCount; f++) {
+            if (previous <= 0)
+                setDelay(f, 1, fps);
+            else if (png) {
+                final int denominator = delayDenominators[f];
+                if (denominator == previous)
+                    setDelay(f, delayNumerators[f], fps);
+                else
+                    setDelay(f, (long) delayNumerators[f] * previous, (long) (denominator == 0 ? 100 : denominator) * fps);
+            } else {
+                // AnimatedGif rounds the delay of one frame to whole milliseconds, then the delay of each frame to
+                // hundredths of a second, so frames are counted the same way to give the same delays it would
+                final int oldFrame = (int) (1000f / previous), newFrame = (int) (1000f / fps);
+                final int delay = delayNumerators[f], frames = Math.round(delay * 10f / oldFrame);
+                if (frames > 0 && Math.round(frames * oldFrame / 10f) == delay)
+                    delayNumerators[f] = Math.min(Math.round(frames * newFrame / 10f), 0xFFFF);
+                else
+                    setDelay(f, (long) delay * previous, 100L * fps);
+            }
+        }
+        frameRate = fps;
+    }
+
+    private void setDelay(int frame, long numerator, long denominator) {
+        if (png) {
+            while (numerator > 0xFFFF || denominator > 0xFFFF) {
+                numerator = numerator + 1 >> 1;
+                denominator = denominator + 1 >> 1;
+            }
+            delayNumerators[frame] = (int) numerator;
+            delayDenominators[frame] = (int) denominator;
+        } else {
+            delayNumerators[frame] = (int) Math.min(Math.round(numerator * 100.0 / denominator), 0xFFFF);
+        }
+    }
+
+    /**
+     * Gets how many times the animation plays; 0 means it loops forever. This means the same for both formats: for an
+     * APNG, it is the num_plays in acTL, and for a GIF, it is one more than the extra iterations stored in its
+     * NETSCAPE2.0 extension (or 0 if that stores 0), or 1 if it has no such extension.
+     * @return how many times the animation plays, or 0 if it loops forever
+     */
+    public int getLoopCount() {
+        return loopCount;
+    }
+
+    /**
+     * Sets how many times the animation plays; 0 means it loops forever. For a GIF, a loopCount of 1 is written without
+     * a NETSCAPE2.0 extension, and any other loopCount is written as a NETSCAPE2.0 extension storing
+     * {@code loopCount - 1} extra iterations (or 0 to loop forever), whether or not the GIF had one already.
+     * @param loopCount how many times the animation should play, or 0 to loop forever; at most 65536 for a GIF
+     */
+    public void setLoopCount(int loopCount) {
+        this.loopCount = Math.max(loopCount, 0);
+    }
+
+    /**
+     * Writes the animation, with the current delays and loop count, to the given FileHandle.
+     * @param file a FileHandle that must be writable
+     */
+    public void write(FileHandle file) {
+        OutputStream output = file.write(false);
+        try {
+            write(output);
+        } finally {
+            StreamUtils.closeQuietly(output);
+        }
+    }
+
+    /**
+     * Writes the animation, with the current delays and loop count, to the given OutputStream. Everything but the
+     * delays, the loop count, and the checksums of the PNG chunks holding them is copied from the encoded animation in
+     * large blocks, with one write for all of the data between two frames' delays.
+     * @param output an OutputStream that will not be closed
+     */
+    public void write(OutputStream output) {
+        try {
+            if (png)
+                writePNG(output);
+            else
+                writeGif(output);
+            output.flush();
+        } catch (IOException e) {
+            Gdx.app.error("anim8", e.getMessage());
+        }
+    }
+
+    private void writePNG(OutputStream output) throws IOException {
+        // acTL comes before every fcTL
+        output.write(data, 0, loopStart);
+        System.arraycopy(data, loopStart, chunk, 0, 12);
+        putInt(chunk, 8, loopCount);
+        int pos = writeChunk(output, loopStart, 12);
+        for (int f = 0; f < frameCount; f++) {
+            final int start = delayOffsets[f];
+            output.write(data, pos, start - pos);
+            System.arraycopy(data, start, chunk, 0, 30);
+            chunk[24] = (byte) (delayNumerators[f] >>> 8);
+            chunk[25] = (byte) delayNumerators[f];
+            chunk[26] = (byte) (delayDenominators[f] >>> 8);
+            chunk[27] = (byte) delayDenominators[f];
+            pos = writeChunk(output, start, 30);
+        }
+        output.write(data, pos, data.length - pos);
+    }
+
+    /**
+     * Writes the chunk type and data in {@link #chunk}, followed by their CRC, and returns where the encoded animation
+     * continues after the chunk, given where the type of the chunk starts in it.
+     */
+    private int writeChunk(OutputStream output, int start, int length) throws IOException {
+        output.write(chunk, 0, length);
+        crc.reset();
+        crc.update(chunk, 0, length);
+        putInt(chunk, 0, (int) crc.getValue());
+        output.write(chunk, 0, 4);
+        return start + length + 4;
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private void writeGif(OutputStream output) throws IOException {
+        final int headerEnd = loopStart < 0 ? loopEnd : loopStart;
+        output.write(data, 0, headerEnd);
+        if (loopCount != 1) {
+            final int extra = loopCount == 0 ? 0 : Math.min(loopCount - 1, 0xFFFF);
+            output.write(0x21); // extension introducer
+            output.write(0xff); // app extension label
+            output.write(11); // block size
+            output.write("NETSCAPE2.0".getBytes("US-ASCII")); // app id + auth code
+            output.write(3); // sub-block size
+            output.write(1); // loop sub-block id
+            output.write(extra & 0xff); // loop count (extra iterations, 0=repeat forever)
+            output.write((extra >> 8) & 0xff);
+            output.write(0); // block terminator
+        }
+        int pos = loopStart < 0 ? headerEnd : loopEnd;
+        for (int f = 0; f < frameCount; f++) {
+            final int delay = delayOffsets[f];
+            output.write(data, pos, delay - pos);
+            output.write(delayNumerators[f] & 0xff);
+            output.write((delayNumerators[f] >> 8) & 0xff);
+            pos = delay + 2;
+        }
+        output.write(data, pos, data.length - pos);
+    }
+}
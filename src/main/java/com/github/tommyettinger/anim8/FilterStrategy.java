@@ -0,0 +1,165 @@
+package com.github.tommyettinger.anim8;
+
+/**
+ * Represents a choice of how {@link PNG8} and {@link AnimatedPNG} filter each row of pixels before compressing it. A
+ * PNG filter replaces each byte with its difference from a prediction made using its neighbors, which tends to make
+ * smooth areas into long runs of small numbers that compress well. Options are NONE (no prediction), SUB (predict from
+ * the pixel to the left), UP (predict from the pixel above), AVERAGE (predict from the average of left and above),
+ * PAETH (predict from whichever of left, above, or above-left is closest to left + above - above-left), ADAPTIVE (try
+ * all five for each row and use whichever has the smallest sum of absolute differences), and FAST (use NONE for the
+ * first row and UP for all others, which is the cheapest option that still helps with vertical repetition).
+ * <br>
+ * PAETH is the default and was the only option before; it is the slowest single filter. ADAPTIVE is the usual choice
+ * for full-color images like those {@link AnimatedPNG} writes. Indexed-mode images, like those {@link PNG8} writes,
+ * often compress better with NONE or SUB, because palette indices that are numerically close may be very different
+ * colors, so prediction doesn't help as much. FAST is a good choice when encoding speed matters more than size.
+ */
+public enum FilterStrategy {
+    NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE, FAST;
+
+    static final int FILTER_NONE = 0, FILTER_SUB = 1, FILTER_UP = 2, FILTER_AVERAGE = 3, FILTER_PAETH = 4;
+
+    /**
+     * Filters one row of {@code lineLen} bytes from {@code curLine} into {@code lineOut}, using {@code prevLine} as the
+     * row above (it should be all 0 for the first row), and returns the PNG filter type byte that must be written
+     * before the filtered row.
+     * @param curLine the unfiltered current row
+     * @param prevLine the unfiltered previous row, or all 0 if this is the first row
+     * @param lineOut will be filled with the filtered row; must have at least lineLen items
+     * @param lineLen how many bytes are in a row
+     * @param bpp bytes per pixel, 1 for indexed-mode or 4 for RGBA
+     * @param firstRow true if this is the first row of an image or frame
+     * @return the PNG filter type used, from 0 to 4 inclusive
+     */
+    int filter(final byte[] curLine, final byte[] prevLine, final byte[] lineOut, final int lineLen, final int bpp,
+               final boolean firstRow) {
+        final int type;
+        switch (this) {
+            case NONE:
+                type = FILTER_NONE;
+                break;
+            case SUB:
+                type = FILTER_SUB;
+                break;
+            case UP:
+                type = FILTER_UP;
+                break;
+            case AVERAGE:
+                type = FILTER_AVERAGE;
+                break;
+            case ADAPTIVE:
+                type = choose(curLine, prevLine, lineLen, bpp);
+                break;
+            case FAST:
+                type = firstRow ? FILTER_NONE : FILTER_UP;
+                break;
+            default:
+                type = FILTER_PAETH;
+        }
+        apply(type, curLine, prevLine, lineOut, lineLen, bpp);
+        return type;
+    }
+
+    /**
+     * Finds the filter type that produces the smallest sum of absolute differences for one row, treating each
+     * filtered byte as signed. This is the heuristic recommended by the PNG specification and used by libpng.
+     */
+    static int choose(final byte[] curLine, final byte[] prevLine, final int lineLen, final int bpp) {
+        long sumNone = 0, sumSub = 0, sumUp = 0, sumAverage = 0, sumPaeth = 0;
+        for (int x = 0; x < lineLen; x++) {
+            int cur = curLine[x] & 0xff;
+            int a = x >= bpp ? curLine[x - bpp] & 0xff : 0;
+            int b = prevLine[x] & 0xff;
+            int c = x >= bpp ? prevLine[x - bpp] & 0xff : 0;
+            sumNone += Math.abs((byte) cur);
+            sumSub += Math.abs((byte) (cur - a));
+            sumUp += Math.abs((byte) (cur - b));
+            sumAverage += Math.abs((byte) (cur - (a + b >>> 1)));
+            sumPaeth += Math.abs((byte) (cur - paeth(a, b, c)));
+        }
+        int type = FILTER_NONE;
+        long best = sumNone;
+        if (sumSub < best) {
+            best = sumSub;
+            type = FILTER_SUB;
+        }
+        if (sumUp < best) {
+            best = sumUp;
+            type = FILTER_UP;
+        }
+        if (sumAverage < best) {
+            best = sumAverage;
+            type = FILTER_AVERAGE;
+        }
+        if (sumPaeth < best) {
+            type = FILTER_PAETH;
+        }
+        return type;
+    }
+
+    /**
+     * Filters one row with the given PNG filter type.
+     */
+    static void apply(final int type, final byte[] curLine, final byte[] prevLine, final byte[] lineOut,
+                      final int lineLen, final int bpp) {
+        switch (type) {
+            case FILTER_NONE:
+                System.arraycopy(curLine, 0, lineOut, 0, lineLen);
+                break;
+            case FILTER_SUB:
+                for (int x = 0; x < bpp && x < lineLen; x++)
+                    lineOut[x] = curLine[x];
+                for (int x = bpp; x < lineLen; x++)
+                    lineOut[x] = (byte) (curLine[x] - curLine[x - bpp]);
+                break;
+            case FILTER_UP:
+                for (int x = 0; x < lineLen; x++)
+                    lineOut[x] = (byte) (curLine[x] - prevLine[x]);
+                break;
+            case FILTER_AVERAGE:
+                for (int x = 0; x < bpp && x < lineLen; x++)
+                    lineOut[x] = (byte) (curLine[x] - ((prevLine[x] & 0xff) >>> 1));
+                for (int x = bpp; x < lineLen; x++)
+                    lineOut[x] = (byte) (curLine[x] - ((curLine[x - bpp] & 0xff) + (prevLine[x] & 0xff) >>> 1));
+                break;
+            default:
+                for (int x = 0; x < bpp && x < lineLen; x++)
+                    lineOut[x] = (byte) (curLine[x] - prevLine[x]);
+                for (int x = bpp; x < lineLen; x++) {
+                    int a = curLine[x - bpp] & 0xff;
+                    int b = prevLine[x] & 0xff;
+                    int c = prevLine[x - bpp] & 0xff;
+                    int p = a + b - c;
+                    int pa = p - a;
+                    if (pa < 0) pa = -pa;
+                    int pb = p - b;
+                    if (pb < 0) pb = -pb;
+                    int pc = p - c;
+                    if (pc < 0) pc = -pc;
+                    if (pa <= pb && pa <= pc)
+                        c = a;
+                    else if (pb <= pc)
+                        c = b;
+                    lineOut[x] = (byte) (curLine[x] - c);
+                }
+        }
+    }
+
+    /**
+     * The Paeth predictor, as defined by the PNG specification; a, b, and c must be unsigned bytes.
+     */
+    static int paeth(final int a, final int b, final int c) {
+        int p = a + b - c;
+        int pa = p - a;
+        if (pa < 0) pa = -pa;
+        int pb = p - b;
+        if (pb < 0) pb = -pb;
+        int pc = p - c;
+        if (pc < 0) pc = -pc;
+        if (pa <= pb && pa <= pc)
+            return a;
+        else if (pb <= pc)
+            return b;
+        return c;
+    }
+}
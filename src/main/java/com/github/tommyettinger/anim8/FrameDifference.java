@@ -0,0 +1,235 @@
+package com.github.tommyettinger.anim8;
+
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntArray;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the area that changed between two frames of an animation, so writers can store only that area for a frame.
+ * Bounds are always given as x, y, width, height in the coordinates of the written image, so if the writer flips its
+ * frames vertically, bounds are flipped to match.
+ */
+final class FrameDifference {
+    private FrameDifference() {
+    }
+
+    /**
+     * Most pixels {@link #hash(Pixmap)} reads from any one frame; larger frames are sampled at regular intervals.
+     */
+    static final int HASH_SAMPLES = 1 << 12;
+
+    /**
+     * Finds the smallest rectangle that contains every pixel that differs between previous and current, which must be
+     * the same size. If any pixels differ, this stores the x, y, width, and height of that rectangle into bounds (in
+     * output coordinates, flipped vertically if flipY is true) and returns true; otherwise this returns false and
+     * doesn't change bounds.
+     * @param previous the earlier frame
+     * @param current the later frame; must be the same size as previous
+     * @param flipY true if frames are flipped vertically when written
+     * @param bounds an int array with at least 4 items, which will be modified if this returns true
+     * @return true if any pixels changed, or false if the frames are identical
+     */
+    static boolean changedArea(Pixmap previous, Pixmap current, boolean flipY, int[] bounds) {
+        final int width = current.getWidth(), height = current.getHeight();
+        final ByteBuffer prev = previous.getFormat() == Pixmap.Format.RGBA8888 ? previous.getPixels() : null;
+        final ByteBuffer curr = current.getFormat() == Pixmap.Format.RGBA8888 ? current.getPixels() : null;
+        int top = -1, bottom = -1;
+        for (int y = 0; y < height && top < 0; y++) {
+            for (int x = 0; x < width; x++) {
+                if (pixel(previous, prev, x, y, width) != pixel(current, curr, x, y, width)) {
+                    top = y;
+                    break;
+                }
+            }
+        }
+        if (top < 0)
+            return false;
+        for (int y = height - 1; y >= top && bottom < 0; y--) {
+            for (int x = 0; x < width; x++) {
+                if (pixel(previous, prev, x, y, width) != pixel(current, curr, x, y, width)) {
+                    bottom = y;
+                    break;
+                }
+            }
+        }
+        int left = width, right = -1;
+        for (int y = top; y <= bottom; y++) {
+            for (int x = 0; x < left; x++) {
+                if (pixel(previous, prev, x, y, width) != pixel(current, curr, x, y, width)) {
+                    left = x;
+                    break;
+                }
+            }
+            for (int x = width - 1; x > right; x--) {
+                if (pixel(previous, prev, x, y, width) != pixel(current, curr, x, y, width)) {
+                    right = x;
+                    break;
+                }
+            }
+        }
+        bounds[0] = left;
+        bounds[1] = flipY ? height - 1 - bottom : top;
+        bounds[2] = right + 1 - left;
+        bounds[3] = bottom + 1 - top;
+        return true;
+    }
+
+    /**
+     * Returns true if previous and current are the same size and have exactly the same pixels.
+     * @param previous the earlier frame
+     * @param current the later frame
+     * @return true if no pixels changed
+     */
+    static boolean identical(Pixmap previous, Pixmap current) {
+        if (previous == current)
+            return true;
+        final int width = current.getWidth(), height = current.getHeight();
+        if (previous.getWidth() != width || previous.getHeight() != height)
+            return false;
+        final ByteBuffer prev = previous.getFormat() == Pixmap.Format.RGBA8888 ? previous.getPixels() : null;
+        final ByteBuffer curr = current.getFormat() == Pixmap.Format.RGBA8888 ? current.getPixels() : null;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (pixel(previous, prev, x, y, width) != pixel(current, curr, x, y, width))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the smallest rectangle that contains every palette index that differs between previous and current, which
+     * are both {@code width * height} indices in output order. If any indices differ, this stores the x, y, width, and
+     * height of that rectangle into bounds and returns true; otherwise this returns false and doesn't change bounds.
+     * @param previous the indices of the earlier frame
+     * @param current the indices of the later frame
+     * @param width the width of a frame in pixels
+     * @param height the height of a frame in pixels
+     * @param bounds an int array with at least 4 items, which will be modified if this returns true
+     * @return true if any indices changed, or false if the frames are identical
+     */
+    static boolean changedArea(byte[] previous, byte[] current, int width, int height, int[] bounds) {
+        int top = -1, bottom = -1;
+        for (int i = 0, n = width * height; i < n; i++) {
+            if (previous[i] != current[i]) {
+                top = i / width;
+                break;
+            }
+        }
+        if (top < 0)
+            return false;
+        for (int i = width * height - 1; ; i--) {
+            if (previous[i] != current[i]) {
+                bottom = i / width;
+                break;
+            }
+        }
+        int left = width, right = -1;
+        for (int y = top; y <= bottom; y++) {
+            final int row = y * width;
+            for (int x = 0; x < left; x++) {
+                if (previous[row + x] != current[row + x]) {
+                    left = x;
+                    break;
+                }
+            }
+            for (int x = width - 1; x > right; x--) {
+                if (previous[row + x] != current[row + x]) {
+                    right = x;
+                    break;
+                }
+            }
+        }
+        bounds[0] = left;
+        bounds[1] = top;
+        bounds[2] = right + 1 - left;
+        bounds[3] = bottom + 1 - top;
+        return true;
+    }
+
+    /**
+     * Returns true if current is close enough to previous to be dropped from an animation, where both are
+     * {@code count} palette indices into the same palette. That is the case if fewer than maxPixels indices differ, or
+     * if the total {@link PaletteReducer#difference(int, int)} between the old and new colors of every pixel that
+     * changed is less than maxDifference. A pixel that becomes transparent or stops being transparent is always too
+     * different for maxDifference, but still counts as just one pixel for maxPixels.
+     * @param previous the indices of the frame that stays visible
+     * @param current the indices of the frame that might be dropped
+     * @param count how many indices to compare
+     * @param colors the RGBA8888 colors of the palette, used only if maxDifference is greater than 0
+     * @param transparentIndex the index of the transparent color, or -1 if there is none
+     * @param maxPixels a frame with fewer changed pixels than this is a near-duplicate; 0 to not count pixels
+     * @param maxDifference a frame with a smaller total color difference than this is a near-duplicate; 0 to not check
+     * @return true if current is a near-duplicate of previous
+     */
+    static boolean nearDuplicate(byte[] previous, byte[] current, int count, int[] colors, int transparentIndex,
+                                 int maxPixels, double maxDifference) {
+        boolean similar = maxDifference > 0.0;
+        double total = 0.0;
+        for (int i = 0, changed = 0; i < count; i++) {
+            final int a = previous[i] & 255, b = current[i] & 255;
+            if (a == b)
+                continue;
+            ++changed;
+            if (similar) {
+                similar = a != transparentIndex && b != transparentIndex
+                        && (total += PaletteReducer.difference(colors[a], colors[b])) < maxDifference;
+            }
+            if (!similar && changed >= maxPixels)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets a cheap hash of pixmap's size and up to {@link #HASH_SAMPLES} of its pixels, spread evenly over the image.
+     * Frames with different hashes are certainly different; frames with the same hash are probably identical, but
+     * still need to be checked with {@link #identical(Pixmap, Pixmap)}.
+     * @param pixmap the frame to hash
+     * @return a hash that is the same for any two identical frames
+     */
+    static int hash(Pixmap pixmap) {
+        final int width = pixmap.getWidth(), height = pixmap.getHeight(), size = width * height;
+        final ByteBuffer pixels = pixmap.getFormat() == Pixmap.Format.RGBA8888 ? pixmap.getPixels() : null;
+        final int step = Math.max(1, size / HASH_SAMPLES);
+        int h = width * 31 + height;
+        for (int i = 0; i < size; i += step) {
+            h = h * 0x9E3779B1 + pixel(pixmap, pixels, i % width, i / width, width);
+        }
+        return h ^ h >>> 15;
+    }
+
+    /**
+     * Finds runs of exact duplicates in frames. For each frame that isn't identical to the frame before it, this adds
+     * two ints: the index of that frame, then how many frames in a row (starting with it) are identical to it. Each
+     * frame is hashed once with {@link #hash(Pixmap)}, and only frames with the same hash as the frame before them are
+     * compared pixel by pixel.
+     * @param frames the frames of an animation, in order
+     * @return pairs of (index of a distinct frame, how many frames of time it lasts)
+     */
+    static IntArray distinctFrames(Array<Pixmap> frames) {
+        final IntArray runs = new IntArray(frames.size * 2);
+        if (frames.size == 0)
+            return runs;
+        runs.add(0);
+        runs.add(1);
+        int previousHash = hash(frames.first());
+        for (int i = 1; i < frames.size; i++) {
+            final int h = hash(frames.get(i));
+            if (h == previousHash && identical(frames.get(i - 1), frames.get(i)))
+                runs.incr(runs.size - 1, 1);
+            else {
+                runs.add(i);
+                runs.add(1);
+            }
+            previousHash = h;
+        }
+        return runs;
+    }
+
+    private static int pixel(Pixmap pixmap, ByteBuffer pixels, int x, int y, int width) {
+        return pixels == null ? pixmap.getPixel(x, y) : pixels.getInt((y * width + x) << 2);
+    }
+}
@@ -0,0 +1,169 @@
+package com.github.tommyettinger.anim8;
+
+import com.badlogic.gdx.utils.StreamUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Holds the output of an animated PNG that is written one frame at a time. The acTL chunk has to store the number of
+ * frames before any frame data, but that number isn't known until the last frame has been added. If the output can be
+ * seeked (a FileChannel is given), frames are written straight to it and the frame count in acTL is patched in place
+ * when the animation is finished. Otherwise, frames are spooled to a temporary file, which is copied to the output
+ * after acTL once the count is known. Either way, no frame data needs to stay in memory.
+ */
+final class FrameSpool {
+    static private final int acTL = 0x6163544C, IEND = 0x49454E44;
+
+    private final OutputStream output;
+    private final boolean closeOutput;
+    private final FileChannel channel;
+    private long animationControlPosition = -1L;
+    private File spoolFile;
+    private OutputStream spoolStream;
+
+    /**
+     * Where the signature and every chunk before acTL (IHDR, PLTE, tRNS) are written.
+     */
+    final DataOutputStream header;
+    /**
+     * Where every fcTL, IDAT, and fdAT chunk is written.
+     */
+    final DataOutputStream frames;
+
+    /**
+     * @param output where the finished animated PNG goes
+     * @param channel the FileChannel that output writes to, if output is a file opened without appending; may be null
+     *                to spool frames to a temporary file instead
+     * @param closeOutput true if output should be closed when this is finished
+     * @throws IOException if a temporary file is needed but can't be created
+     */
+    FrameSpool(OutputStream output, FileChannel channel, boolean closeOutput) throws IOException {
+        this.output = output;
+        this.channel = channel;
+        this.closeOutput = closeOutput;
+        header = new DataOutputStream(output);
+        if (channel != null)
+            frames = header;
+        else {
+            spoolFile = File.createTempFile("anim8", ".apng");
+            spoolStream = new FileOutputStream(spoolFile);
+            frames = new DataOutputStream(new BufferedOutputStream(spoolStream, 1 << 16));
+        }
+    }
+
+    /**
+     * Called after every chunk before acTL has been written to {@link #header}. If frames go straight to the output, this
+     * writes an acTL chunk with a frame count of 0 and remembers where it is, so {@link #finish(ChunkBuffer, int)} can
+     * fix the count; otherwise, acTL is written by finish().
+     * @param buffer used to build the chunk
+     * @throws IOException if the output throws one
+     */
+    void writeAnimationControl(ChunkBuffer buffer) throws IOException {
+        if (channel == null)
+            return;
+        header.flush();
+        animationControlPosition = channel.position();
+        writeAnimationControl(buffer, header, 0);
+    }
+
+    private static void writeAnimationControl(ChunkBuffer buffer, DataOutputStream target, int frameCount)
+            throws IOException {
+        buffer.writeInt(acTL);
+        buffer.writeInt(frameCount);
+        buffer.writeInt(0);
+        buffer.endChunk(target);
+    }
+
+    /**
+     * Adds num/den seconds to the frame delay in delay, where delay[0] is the numerator and delay[1] the denominator, as
+     * stored in fcTL (where a denominator of 0 means 100). If the denominators differ, the sum is kept in milliseconds.
+     * Either way, both parts are kept within the 16 bits fcTL has for each, losing a little precision only for delays
+     * longer than about a minute.
+     * @param delay a 2-item array with the numerator and denominator of a frame delay; will be modified
+     * @param num the numerator of the delay to add
+     * @param den the denominator of the delay to add
+     */
+    static void addDelay(int[] delay, int num, int den) {
+        long n, d;
+        if (delay[1] == den) {
+            n = delay[0] + (long) num;
+            d = den;
+        } else {
+            n = Math.round(delay[0] * 1000.0 / (delay[1] == 0 ? 100 : delay[1]) + num * 1000.0 / (den == 0 ? 100 : den));
+            d = 1000;
+        }
+        while (n > 0xFFFF || d > 0xFFFF) {
+            n = n + 1 >> 1;
+            d = d + 1 >> 1;
+        }
+        delay[0] = (int) n;
+        delay[1] = (int) d;
+    }
+
+    /**
+     * Finishes the animated PNG with an IEND chunk, making sure acTL stores frameCount, and flushes the output. This
+     * doesn't close the output or release the temporary file; {@link #close()} does that.
+     * @param buffer used to build chunks
+     * @param frameCount how many frames (fcTL chunks) were written to {@link #frames}
+     * @throws IOException if the output or temporary file throws one
+     */
+    void finish(ChunkBuffer buffer, int frameCount) throws IOException {
+        if (channel != null) {
+            buffer.writeInt(IEND);
+            buffer.endChunk(frames);
+            frames.flush();
+            ByteArrayOutputStream patch = new ByteArrayOutputStream(20);
+            writeAnimationControl(buffer, new DataOutputStream(patch), frameCount);
+            ByteBuffer bytes = ByteBuffer.wrap(patch.toByteArray());
+            long position = animationControlPosition;
+            while (bytes.hasRemaining()) {
+                position += channel.write(bytes, position);
+            }
+        } else {
+            frames.close();
+            spoolStream = null;
+            writeAnimationControl(buffer, header, frameCount);
+            InputStream spooled = new FileInputStream(spoolFile);
+            try {
+                byte[] block = new byte[1 << 16];
+                int n;
+                while ((n = spooled.read(block)) > 0) {
+                    header.write(block, 0, n);
+                }
+            } finally {
+                StreamUtils.closeQuietly(spooled);
+            }
+            buffer.writeInt(IEND);
+            buffer.endChunk(header);
+        }
+        output.flush();
+    }
+
+    /**
+     * Deletes the temporary file, if there is one, and closes the output if this was asked to. This is safe to call
+     * whether or not {@link #finish(ChunkBuffer, int)} succeeded.
+     */
+    void close() {
+        if (spoolStream != null) {
+            StreamUtils.closeQuietly(spoolStream);
+            spoolStream = null;
+        }
+        if (spoolFile != null) {
+            if (!spoolFile.delete())
+                spoolFile.deleteOnExit();
+            spoolFile = null;
+        }
+        if (closeOutput)
+            StreamUtils.closeQuietly(output);
+    }
+}
@@ -2,27 +2,24 @@ package com.github.tommyettinger.anim8;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
 
 /**
  * LZW encoding specific to the GIF format.
  * Adapted from Jef Poskanzer's Java port by way of J. M. G. Elliott.
  * <br>
+ * One LZWEncoder can encode any number of images, one after another; its tables are allocated once and reused.
+ * <br>
  * Created by K Weiner in December 2000
  */	 
 class LZWEncoder {
 
-    private static final int EOF = -1;
-
-    private final int imgW;
-	private final int imgH;
-
-    private final byte[] pixArray;
+    private int imgW;
+	private int imgH;
 
-    private final int initCodeSize;
+    private byte[] pixArray;
 
-    private int remaining;
-
-    private int curPixel;
+    private int initCodeSize;
 
     // GIFCOMPR.C - GIF Image compression routines
     //
@@ -33,7 +30,11 @@ class LZWEncoder {
 
     static final int BITS = 12;
 
-    static final int HSIZE = 5003; // 80% occupancy
+    static final int HBITS = 13; // 8192 slots, so the table is never more than half full
+
+    static final int HSIZE = 1 << HBITS;
+
+    static final int HMASK = HSIZE - 1;
 
     // GIF Image compression - modified 'compress'
     //
@@ -54,11 +55,13 @@ class LZWEncoder {
 
     int maxmaxcode = 1 << BITS; // should NEVER generate this code
 
-    int[] htab = new int[HSIZE];
+    int[] htab = new int[HSIZE]; // generation stamp in the top 12 bits, then the 20-bit prefix code / next character
 
     int[] codetab = new int[HSIZE];
 
-    int hsize = HSIZE; // for dynamic table sizing
+    int generation = 0; // entries in htab are only valid if they have this generation; 0 is never valid
+
+    int stamp; // generation << 20
 
     int free_ent = 0; // first unused entry
 
@@ -66,17 +69,16 @@ class LZWEncoder {
     // and compression rate changes, start over.
     boolean clear_flg = false;
 
-    // Algorithm: use open addressing double hashing (no chaining) on the
-    // prefix code / next character combination. We do a variant of Knuth's
-    // algorithm D (vol. 3, sec. 6.4) along with G. Knott's relatively-prime
-    // secondary probe. Here, the modular division first probe is gives way
-    // to a faster exclusive-or manipulation. Also do block compression with
-    // an adaptive reset, whereby the code table is cleared when the compression
-    // ratio decreases, but after the table fills. The variable-length output
-    // codes are re-sized at this point, and a special CLEAR code is generated
-    // for the decompressor. Late addition: construct the table according to
-    // file size for noticeable speed improvement on small files. Please direct
-    // questions about this implementation to ames!jaw.
+    // Algorithm: use open addressing with linear probing on the prefix code /
+    // next character combination, in a power-of-two table that is at most half
+    // full, with a multiplicative hash. Each entry is stamped with a generation
+    // number, so clearing the table only needs a new generation instead of a
+    // pass over every slot. The original used Knuth's algorithm D with
+    // G. Knott's secondary probe in a 5003-slot table; because both find exact
+    // matches for the same strings, the output is identical. Also do block
+    // compression with an adaptive reset, whereby the code table is cleared
+    // after the table fills. The variable-length output codes are re-sized at
+    // this point, and a special CLEAR code is generated for the decompressor.
 
     int g_init_bits;
 
@@ -103,23 +105,34 @@ class LZWEncoder {
 
     int cur_bits = 0;
 
-    int[] masks = {0x0000, 0x0001, 0x0003, 0x0007, 0x000F, 0x001F, 0x003F, 0x007F, 0x00FF, 0x01FF,
+    static final int[] masks = {0x0000, 0x0001, 0x0003, 0x0007, 0x000F, 0x001F, 0x003F, 0x007F, 0x00FF, 0x01FF,
             0x03FF, 0x07FF, 0x0FFF, 0x1FFF, 0x3FFF, 0x7FFF, 0xFFFF};
 
+    // Lossy compression, after gifsicle's --lossy: when the current string can't
+    // be extended by the next pixel, it may be extended by a similar color
+    // instead, as long as the two colors differ by less than lossyThreshold
+    // (measured by PaletteReducer.difference()). For each palette index c, the
+    // similar indices are similarIndex[similarStart[c]] up to (but excluding)
+    // similarIndex[similarStart[c+1]], closest first. The transparent index is
+    // never substituted, or substituted for.
+    double lossyThreshold = 0.0; // 0 means lossless
+
+    int lossyColors;
+
+    int lossyTrans;
+
+    final byte[] lossyTab = new byte[256 * 3];
+
+    final int[] similarStart = new int[257];
+
+    int[] similarIndex;
+
     // Number of characters so far in this 'packet'
     int a_count;
 
     // Define the storage for the packet accumulator
     byte[] accum = new byte[256];
 
-    // ----------------------------------------------------------------------------
-    LZWEncoder(int width, int height, byte[] pixels, int color_depth) {
-        imgW = width;
-        imgH = height;
-        pixArray = pixels;
-        initCodeSize = Math.max(2, color_depth);
-    }
-
     // Add a character to the end of the current packet, and if it is 254
     // characters, flush the packet to disk.
     void char_out(byte c, OutputStream outs) throws IOException {
@@ -132,27 +145,91 @@ class LZWEncoder {
 
     // table clear for block compress
     void cl_block(OutputStream outs) throws IOException {
-        cl_hash(hsize);
+        cl_hash();
         free_ent = ClearCode + 2;
         clear_flg = true;
 
         output(ClearCode, outs);
     }
 
-    // reset code table
-    void cl_hash(int hsize) {
-        for (int i = 0; i < hsize; ++i)
-            htab[i] = -1;
+    // reset code table, by starting a new generation; the slots only need to
+    // be cleared when the generation number runs out of bits
+    void cl_hash() {
+        if (++generation == 4096) {
+            Arrays.fill(htab, 0);
+            generation = 1;
+        }
+        stamp = generation << 20;
+    }
+
+    // Turns on lossy compression for the given RGB color table, which has the
+    // given number of colors and transparent index (or -1), or turns it off if
+    // threshold is 0 or less. The lists of similar colors are only rebuilt when
+    // the palette or threshold changes.
+    void setLossy(byte[] colorTab, int colors, int transIndex, double threshold) {
+        if (threshold <= 0.0) {
+            lossyThreshold = 0.0;
+            return;
+        }
+        colors = Math.min(colors, colorTab.length / 3);
+        if (threshold == lossyThreshold && colors == lossyColors && transIndex == lossyTrans) {
+            boolean same = true;
+            for (int i = 0, n = colors * 3; i < n; i++) {
+                if (colorTab[i] != lossyTab[i]) {
+                    same = false;
+                    break;
+                }
+            }
+            if (same)
+                return;
+        }
+        lossyThreshold = threshold;
+        lossyColors = colors;
+        lossyTrans = transIndex;
+        System.arraycopy(colorTab, 0, lossyTab, 0, colors * 3);
+        final int[] rgba = new int[colors];
+        for (int i = 0, bi = 0; i < colors; i++) {
+            rgba[i] = (colorTab[bi++] & 255) << 24 | (colorTab[bi++] & 255) << 16 | (colorTab[bi++] & 255) << 8 | 255;
+        }
+        if (similarIndex == null)
+            similarIndex = new int[256 * 255];
+        final double[] diffs = new double[colors];
+        int count = 0;
+        for (int c = 0; c < colors; c++) {
+            similarStart[c] = count;
+            if (c == transIndex)
+                continue;
+            for (int o = 0; o < colors; o++) {
+                if (o == c || o == transIndex)
+                    continue;
+                double diff = PaletteReducer.difference(rgba[c], rgba[o]);
+                if (diff >= threshold)
+                    continue;
+                // insertion sort, so the closest colors are tried first
+                int j = count++;
+                for (; j > similarStart[c] && diffs[j - 1 - similarStart[c]] > diff; j--) {
+                    similarIndex[j] = similarIndex[j - 1];
+                    diffs[j - similarStart[c]] = diffs[j - 1 - similarStart[c]];
+                }
+                similarIndex[j] = o;
+                diffs[j - similarStart[c]] = diff;
+            }
+        }
+        for (int c = colors; c <= 256; c++) {
+            similarStart[c] = count;
+        }
     }
 
     void compress(int init_bits, OutputStream outs) throws IOException {
+        final byte[] pixels = pixArray;
+        final int[] htab = this.htab, codetab = this.codetab;
+        final int n = imgW * imgH;
+        final boolean lossy = lossyThreshold > 0.0;
         int fcode;
-        int i /* = 0 */;
+        int i;
         int c;
         int ent;
-        int disp;
-        int hsize_reg;
-        int hshift;
+        int key;
 
         // Set up the globals: g_init_bits - initial number of bits
         g_init_bits = init_bits;
@@ -167,47 +244,45 @@ class LZWEncoder {
         free_ent = ClearCode + 2;
 
         a_count = 0; // clear packet
+        cur_accum = 0;
+        cur_bits = 0;
 
-        ent = nextPixel();
-
-        hshift = 0;
-        for (fcode = hsize; fcode < 65536; fcode *= 2)
-            ++hshift;
-        hshift = 8 - hshift; // set hash code range bound
+        ent = pixels[0] & 0xff;
 
-        hsize_reg = hsize;
-        cl_hash(hsize_reg); // clear hash table
+        cl_hash(); // clear hash table
 
         output(ClearCode, outs);
 
         outer_loop:
-        while ((c = nextPixel()) != EOF) {
+        for (int p = 1; p < n; p++) {
+            c = pixels[p] & 0xff;
             fcode = (c << maxbits) + ent;
-            i = (c << hshift) ^ ent; // xor hashing
-
-            if (htab[i] == fcode) {
-                ent = codetab[i];
-                continue;
-            } else if (htab[i] >= 0) // non-empty slot
-            {
-                disp = hsize_reg - i; // secondary hash (after G. Knott)
-                if (i == 0)
-                    disp = 1;
-                do {
-                    if ((i -= disp) < 0)
-                        i += hsize_reg;
-
-                    if (htab[i] == fcode) {
-                        ent = codetab[i];
-                        continue outer_loop;
+            key = stamp | fcode;
+            i = (fcode * 0x9E3779B1) >>> (32 - HBITS); // multiplicative hashing
+
+            for (int k; ((k = htab[i]) ^ stamp) >>> 20 == 0; i = (i + 1) & HMASK) {
+                if (k == key) {
+                    ent = codetab[i];
+                    continue outer_loop;
+                }
+            }
+            if (lossy) {
+                for (int s = similarStart[c], e = similarStart[c + 1]; s < e; s++) {
+                    final int fcode2 = (similarIndex[s] << maxbits) + ent, key2 = stamp | fcode2;
+                    for (int j = (fcode2 * 0x9E3779B1) >>> (32 - HBITS), k; ((k = htab[j]) ^ stamp) >>> 20 == 0;
+                         j = (j + 1) & HMASK) {
+                        if (k == key2) {
+                            ent = codetab[j];
+                            continue outer_loop;
+                        }
                     }
-                } while (htab[i] >= 0);
+                }
             }
             output(ent, outs);
             ent = c;
             if (free_ent < maxmaxcode) {
                 codetab[i] = free_ent++; // code -> hashtable
-                htab[i] = fcode;
+                htab[i] = key;
             } else
                 cl_block(outs);
         }
@@ -217,15 +292,18 @@ class LZWEncoder {
     }
 
     // ----------------------------------------------------------------------------
-    void encode(OutputStream os) throws IOException {
-        os.write(initCodeSize); // write "initial code size" byte
+    void encode(OutputStream os, int width, int height, byte[] pixels, int color_depth) throws IOException {
+        imgW = width;
+        imgH = height;
+        pixArray = pixels;
+        initCodeSize = Math.max(2, color_depth);
 
-        remaining = imgW * imgH; // reset navigation variables
-        curPixel = 0;
+        os.write(initCodeSize); // write "initial code size" byte
 
         compress(initCodeSize + 1, os); // compress and write the pixel data
 
         os.write(0); // write block terminator
+        pixArray = null;
     }
 
     // Flush the packet to disk, and reset the accumulator
@@ -241,20 +319,6 @@ class LZWEncoder {
         return (1 << n_bits) - 1;
     }
 
-    // ----------------------------------------------------------------------------
-    // Return the next pixel from the image
-    // ----------------------------------------------------------------------------
-    private int nextPixel() {
-        if (remaining == 0)
-            return EOF;
-
-        --remaining;
-
-        byte pix = pixArray[curPixel++];
-
-        return pix & 0xff;
-    }
-
     void output(int code, OutputStream outs) throws IOException {
         cur_accum &= masks[cur_bits];
 
@@ -8,8 +8,16 @@ import com.badlogic.gdx.math.MathUtils;
 import com.badlogic.gdx.utils.*;
 
 import java.io.DataOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 
@@ -62,14 +70,47 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
     static private final byte COMPRESSION_DEFLATE = 0;
     static private final byte FILTER_NONE = 0;
     static private final byte INTERLACE_NONE = 0;
-    static private final byte PAETH = 4;
 
     private final ChunkBuffer buffer;
+    private final DataChunkStream chunks;
     private final Deflater deflater;
+    private int compression = Deflater.DEFAULT_COMPRESSION;
+    private int deflateThreads = 1;
+    private ExecutorService deflatePool;
     private ByteArray lineOutBytes, curLineBytes, prevLineBytes;
+    private ByteArray frameIndexBytes, previousFrameIndexBytes, nextFrameIndexBytes;
     private boolean flipY = true;
+    private boolean frameDifferencing = false;
+    private boolean duplicateMerging = false;
+    private int nearDuplicatePixels = 0;
+    private double nearDuplicateDifference = 0.0;
+    private FilterStrategy filterStrategy = FilterStrategy.PAETH;
+    private boolean temporalCoherence = false;
+    private boolean pipelined = false;
+    private double sceneCutThreshold = 0.0;
     private int lastLineLen;
 
+    private ChannelOutputStream channelOutput;
+    private FrameSpool spool;
+    private int streamFps, streamWidth, streamHeight, streamSeq, streamFrames;
+    private final int[] pendingArea = new int[4];
+    private final int[] streamBounds = new int[4];
+    private final int[] pendingDelay = new int[2];
+    private boolean pendingOver, hasPending;
+    private Pixmap previousFrame;
+    private final ByteArray pendingFrame = new ByteArray(1024);
+    private final OutputStream pendingOutput = new OutputStream() {
+        @Override
+        public void write(int b) {
+            pendingFrame.add((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            pendingFrame.addAll(b, off, len);
+        }
+    };
+
     public PaletteReducer palette;
     
     protected DitherAlgorithm ditherAlgorithm = DitherAlgorithm.PATTERN;
@@ -108,6 +149,7 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
 
     public PNG8(int initialBufferSize) {
         buffer = new ChunkBuffer(initialBufferSize);
+        chunks = new DataChunkStream(initialBufferSize);
         deflater = new Deflater();
     }
 
@@ -116,9 +158,276 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
         this.flipY = flipY;
     }
 
+    /**
+     * Returns true if animated PNG8 output only writes the changed area of each frame; see
+     * {@link #setFrameDifferencing(boolean)}.
+     * @return true if frame differencing is enabled
+     */
+    public boolean isFrameDifferencing () {
+        return frameDifferencing;
+    }
+
+    /**
+     * If true, each frame of an animated PNG8 after the first only stores the smallest rectangle containing every
+     * palette index that changed since the previous frame, and a frame identical to the previous one isn't stored at
+     * all; instead, the previous frame is shown for longer. If the palette has a transparent color at index 0 (which is
+     * usual for palettes this computes from images with transparency), pixels inside that rectangle that didn't change
+     * are written as transparent and the rectangle is blended over the previous frame, which compresses much better;
+     * a frame where some pixel becomes transparent is written without blending instead. The animation looks exactly the
+     * same either way. Default is false, which writes every frame at full size. This has no effect on still images.
+     * @param frameDifferencing true if only changed areas should be written
+     */
+    public void setFrameDifferencing (boolean frameDifferencing) {
+        this.frameDifferencing = frameDifferencing;
+    }
+
+    /**
+     * Returns true if runs of identical frames in an animated PNG8 are written once; see
+     * {@link #setDuplicateMerging(boolean)}.
+     * @return true if duplicate frames are merged
+     */
+    public boolean isDuplicateMerging () {
+        return duplicateMerging;
+    }
+
+    /**
+     * If true, a frame of an animated PNG8 with exactly the same pixels as the frame before it isn't written at all;
+     * instead, the frame before it is shown for longer, by adding the duplicate's delay to its own. When writing an Array
+     * of frames, frames are compared by a cheap hash of their pixels first, and only frames with matching hashes are
+     * compared pixel by pixel, so duplicates are found before any quantizing. When adding frames one at a time with
+     * {@link #addFrame(Pixmap)}, the previous frame may be gone already, so frames that quantize to exactly the same
+     * palette indices are merged instead. The animation looks exactly the same either way. Default is false.
+     * {@link #setFrameDifferencing(boolean)} already merges duplicate frames, so this only matters without it.
+     * @param duplicateMerging true if runs of identical frames should be written as one longer frame
+     */
+    public void setDuplicateMerging (boolean duplicateMerging) {
+        this.duplicateMerging = duplicateMerging;
+    }
+
+    /**
+     * Gets how many pixels have to change for a frame of an animated PNG8 to be written; see
+     * {@link #setNearDuplicatePixels(int)}.
+     * @return the number of changed pixels a frame needs to not be merged into the frame before it; 0 if unused
+     */
+    public int getNearDuplicatePixels () {
+        return nearDuplicatePixels;
+    }
+
+    /**
+     * If greater than 0, a frame of an animated PNG8 that changes fewer than this many palette indices, compared to the
+     * last written frame, isn't written; instead, the last written frame is shown for longer, by adding the dropped
+     * frame's delay to its own. Unlike {@link #setDuplicateMerging(boolean)}, this is lossy: a small change, such as
+     * dither noise flickering between frames or a tiny blinking light, is lost until a frame that changes more comes
+     * along. Frames are always compared to the last frame that was written, not to the last frame that was dropped, so
+     * a slow fade is still written once enough of it has changed. This compares the indices frames were quantized to,
+     * so it costs almost nothing more than quantizing. Because the number of frames isn't known until every frame has
+     * been quantized, writing an Array of frames with this enabled works like {@link #start(OutputStream, int)}, and
+     * keeps compressed frames in a temporary file; {@link #setPipelined(boolean)} has no effect then. This can be
+     * combined with {@link #setNearDuplicateDifference(double)}, where a frame is dropped if either allows it. Default
+     * is 0, which never drops a frame for this reason.
+     * @param nearDuplicatePixels a frame with fewer changed pixels than this is dropped; 0 to not drop frames this way
+     */
+    public void setNearDuplicatePixels (int nearDuplicatePixels) {
+        this.nearDuplicatePixels = Math.max(nearDuplicatePixels, 0);
+    }
+
+    /**
+     * Gets the total color difference a frame of an animated PNG8 needs to be written; see
+     * {@link #setNearDuplicateDifference(double)}.
+     * @return the total color difference a frame needs to not be merged into the frame before it; 0 if unused
+     */
+    public double getNearDuplicateDifference () {
+        return nearDuplicateDifference;
+    }
+
+    /**
+     * If greater than 0, a frame of an animated PNG8 isn't written if the {@link PaletteReducer#difference(int, int)}
+     * between the old and new color of every pixel it changes, compared to the last written frame, adds up to less
+     * than this; instead, the last written frame is shown for longer, by adding the dropped frame's delay to its own.
+     * Any pixel that becomes transparent, or stops being transparent, keeps a frame from being dropped this way. Colors
+     * in an analyzed palette are usually at least 400 apart by that measure, so a budget of about 1000 lets a frame
+     * through only if it changes a pixel or two between similar colors; large budgets drop more frames, and more of
+     * the motion in them. Otherwise, this works like {@link #setNearDuplicatePixels(int)}, and can be combined with it.
+     * Default is 0, which never drops a frame for this reason.
+     * @param nearDuplicateDifference a frame whose changed pixels differ by less than this in total is dropped; 0 to
+     *                                not drop frames this way
+     */
+    public void setNearDuplicateDifference (double nearDuplicateDifference) {
+        this.nearDuplicateDifference = Math.max(nearDuplicateDifference, 0.0);
+    }
+
+    private boolean nearDuplicate(byte[] previousIndices, byte[] indices, int count) {
+        if (nearDuplicatePixels <= 0 && nearDuplicateDifference <= 0.0)
+            return false;
+        final int[] paletteArray = palette.paletteArray;
+        return FrameDifference.nearDuplicate(previousIndices, indices, count, paletteArray,
+                paletteArray[0] == 0 ? 0 : -1, nearDuplicatePixels, nearDuplicateDifference);
+    }
+
     /** Sets the deflate compression level. Default is {@link Deflater#DEFAULT_COMPRESSION}. */
     public void setCompression (int level) {
         deflater.setLevel(level);
+        compression = level;
+    }
+
+    /**
+     * Gets the {@link FilterStrategy} this uses to filter each row before compressing it. Default is
+     * {@link FilterStrategy#PAETH}.
+     * @return the current FilterStrategy
+     */
+    public FilterStrategy getFilterStrategy () {
+        return filterStrategy;
+    }
+
+    /**
+     * Sets the {@link FilterStrategy} this uses to filter each row before compressing it. Default is
+     * {@link FilterStrategy#PAETH}; {@link FilterStrategy#ADAPTIVE} usually produces smaller files but takes longer,
+     * while {@link FilterStrategy#FAST} is quicker but usually produces larger files. If filterStrategy is null, this
+     * does nothing.
+     * @param filterStrategy which FilterStrategy to use for later writes; null is ignored
+     */
+    public void setFilterStrategy (FilterStrategy filterStrategy) {
+        if (filterStrategy != null)
+            this.filterStrategy = filterStrategy;
+    }
+
+    /**
+     * Gets the largest number of compressed bytes this puts in one IDAT or fdAT chunk, or 0 if each frame is written as
+     * a single chunk. Default is 0.
+     * @return the current maximum data chunk size, or 0 if unlimited
+     */
+    public int getDataChunkSize () {
+        return chunks.getChunkSize();
+    }
+
+    /**
+     * Sets the largest number of compressed bytes this puts in one IDAT or fdAT chunk. If size is positive, compressed
+     * image data is written to the output in chunks of at most that size as soon as each chunk fills, so memory use
+     * stays bounded no matter how large a frame is, and the output starts receiving a frame before it is fully
+     * compressed; 65536 is a good size. If size is 0 (the default), each frame is held in memory until it is fully
+     * compressed, then written as one chunk.
+     * @param size the maximum data size for an IDAT or fdAT chunk, in bytes, or 0 to not limit it
+     */
+    public void setDataChunkSize (int size) {
+        chunks.setChunkSize(size);
+    }
+
+    /**
+     * Gets how many threads this uses to compress each frame. Default is 1.
+     * @return how many threads compress each frame
+     */
+    public int getDeflateThreads () {
+        return deflateThreads;
+    }
+
+    /**
+     * Sets how many threads this uses to compress each frame. If threads is greater than 1, image data is split into
+     * 128 KB blocks that are compressed at the same time, with each block using the end of the previous block as a
+     * dictionary; the result is still one standard zlib stream per frame, and is usually only slightly larger than
+     * when using one thread. This only helps with large frames (at least several hundred KB of image data), and helps
+     * most at high compression levels. The worker threads are created when first needed and stopped by
+     * {@link #dispose()} or by setting this to 1.
+     * @param threads how many threads to compress with; 1 or less uses only the calling thread
+     */
+    public void setDeflateThreads (int threads) {
+        threads = Math.max(threads, 1);
+        if (threads != deflateThreads && deflatePool != null) {
+            deflatePool.shutdown();
+            deflatePool = null;
+        }
+        deflateThreads = threads;
+    }
+
+    private DeflaterOutputStream newDeflaterStream (OutputStream target) {
+        if (deflateThreads <= 1)
+            return new DeflaterOutputStream(target, deflater);
+        if (deflatePool == null)
+            deflatePool = Executors.newFixedThreadPool(deflateThreads, new DaemonThreadFactory());
+        return new ParallelDeflaterOutputStream(target, deflater, compression, deflateThreads, deflatePool);
+    }
+
+    /**
+     * Returns true if animated output reuses the previous frame's palette index for pixels whose color didn't change
+     * since the previous frame; see {@link #setTemporalCoherence(boolean)}.
+     * @return true if unchanged pixels reuse the previous frame's palette indices when writing animations
+     */
+    public boolean isTemporalCoherence() {
+        return temporalCoherence;
+    }
+
+    /**
+     * If true, when writing an animation, any pixel with exactly the same RGBA color as the same pixel in the previous
+     * frame reuses the previous frame's palette index instead of being quantized (and dithered) again. This skips
+     * quantization work for static areas, and guarantees that static areas have identical indices from frame to frame
+     * regardless of the dither algorithm. Default is false. Doesn't affect non-animated images.
+     * @param temporalCoherence true if unchanged pixels should reuse the previous frame's palette indices
+     */
+    public void setTemporalCoherence(boolean temporalCoherence) {
+        this.temporalCoherence = temporalCoherence;
+    }
+
+    /**
+     * Returns true if animated PNG8 output quantizes each frame on a separate thread while the previous frame is being
+     * compressed; see {@link #setPipelined(boolean)}.
+     * @return true if quantizing and compressing frames happen at the same time
+     */
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * If true, writing an animated PNG8 uses a second thread to quantize (and dither) the next frame while the current
+     * thread filters and compresses the previous one, so the two slowest parts of writing happen at the same time. The
+     * output is the same either way. Default is false. The extra thread only exists while a write is in progress. This
+     * has no effect on still images.
+     * @param pipelined true if quantizing and compressing different frames should happen at the same time
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Gets how much the colors must change between frames to count as a new scene; see
+     * {@link #setSceneCutThreshold(double)}.
+     * @return the scene cut threshold, or 0 if scene detection is off
+     */
+    public double getSceneCutThreshold() {
+        return sceneCutThreshold;
+    }
+
+    /**
+     * If greater than 0, writing an animation when {@link #palette} is null first checks the frames for scene changes,
+     * using {@link #findScenes(Array, double)} with this threshold. An animated PNG8 can only have one palette, so if
+     * there is more than one scene, this logs a warning that the shared palette may not suit every scene; writing each
+     * scene to its own file (each with a palette computed from that scene) avoids that. 0.4 catches most hard cuts
+     * without splitting on ordinary motion. Default is 0, which doesn't check.
+     * @param sceneCutThreshold how different consecutive frames must be to count as a new scene; 0 disables this
+     */
+    public void setSceneCutThreshold(double sceneCutThreshold) {
+        this.sceneCutThreshold = Math.max(sceneCutThreshold, 0.0);
+    }
+
+    /**
+     * Finds where each scene in {@code frames} starts, by comparing coarse color histograms of consecutive frames. A new
+     * scene starts whenever the fraction of pixels that moved to a different color range, compared to the frame before,
+     * is greater than {@code threshold}. Because an animated PNG8 has only one palette, animations with very different
+     * scenes can look better when each scene is written to its own file, with {@link #palette} set to null (or to a
+     * PaletteReducer analyzed from that scene) before each write.
+     * @param frames the frames of an animation, in order
+     * @param threshold how different consecutive frames must be to start a new scene, from 0.0 to 1.0; 0.4 is a good default
+     * @return the index of the first frame of each scene, in order; the first item is always 0
+     */
+    public IntArray findScenes(Array<Pixmap> frames, double threshold) {
+        return SceneDetection.findScenes(frames, threshold, 1);
+    }
+
+    private void checkScenes(Array<Pixmap> frames) {
+        if (sceneCutThreshold <= 0.0 || frames.size < 2)
+            return;
+        IntArray scenes = findScenes(frames, sceneCutThreshold);
+        if (scenes.size > 1)
+            Gdx.app.log("anim8", "Animation has " + scenes.size + " scenes, starting at frames " + scenes
+                    + ", but an animated PNG8 can only use one palette; writing each scene to its own file may look better.");
     }
 
     /**
@@ -431,7 +740,7 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
                 colorToIndex.put(paletteArray[i], i);
             }
         }
-        DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(buffer, deflater);
+        DeflaterOutputStream deflaterOutput = newDeflaterStream(chunks);
         DataOutputStream dataOutput = new DataOutputStream(output);
         try {
             dataOutput.write(SIGNATURE);
@@ -460,7 +769,7 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
                 buffer.write(0);
                 buffer.endChunk(dataOutput);
             }
-            buffer.writeInt(IDAT);
+            chunks.begin(dataOutput, IDAT, 0);
             deflater.reset();
 
             int lineLen = pixmap.getWidth();
@@ -487,28 +796,7 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
                     curLine[px] = (byte) colorToIndex.get(color, 0);
                 }
 
-                lineOut[0] = (byte) (curLine[0] - prevLine[0]);
-
-                //Paeth
-                for (int x = 1; x < lineLen; x++) {
-                    int a = curLine[x - 1] & 0xff;
-                    int b = prevLine[x] & 0xff;
-                    int c = prevLine[x - 1] & 0xff;
-                    int p = a + b - c;
-                    int pa = p - a;
-                    if (pa < 0) pa = -pa;
-                    int pb = p - b;
-                    if (pb < 0) pb = -pb;
-                    int pc = p - c;
-                    if (pc < 0) pc = -pc;
-                    if (pa <= pb && pa <= pc)
-                        c = a;
-                    else if (pb <= pc)
-                        c = b;
-                    lineOut[x] = (byte) (curLine[x] - c);
-                }
-
-                deflaterOutput.write(PAETH);
+                deflaterOutput.write(filterStrategy.filter(curLine, prevLine, lineOut, lineLen, 1, y == 0));
                 deflaterOutput.write(lineOut, 0, lineLen);
 
                 byte[] temp = curLine;
@@ -516,7 +804,7 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
                 prevLine = temp;
             }
             deflaterOutput.finish();
-            buffer.endChunk(dataOutput);
+            chunks.end();
 
             buffer.writeInt(IEND);
             buffer.endChunk(dataOutput);
@@ -606,7 +894,7 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
                 colorToIndex.put(paletteArray[i], i);
             }
         }
-        DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(buffer, deflater);
+        DeflaterOutputStream deflaterOutput = newDeflaterStream(chunks);
         DataOutputStream dataOutput = new DataOutputStream(output);
         try {
         dataOutput.write(SIGNATURE);
@@ -635,7 +923,7 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
             buffer.write(0);
             buffer.endChunk(dataOutput);
         }
-        buffer.writeInt(IDAT);
+        chunks.begin(dataOutput, IDAT, 0);
         deflater.reset();
 
         int lineLen = width;
@@ -663,28 +951,7 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
                 curLine[px - startX] = (byte) colorToIndex.get(color, 0);
             }
 
-            lineOut[0] = (byte)(curLine[0] - prevLine[0]);
-
-            //Paeth
-            for (int x = 1; x < lineLen; x++) {
-                int a = curLine[x - 1] & 0xff;
-                int b = prevLine[x] & 0xff;
-                int c = prevLine[x - 1] & 0xff;
-                int p = a + b - c;
-                int pa = p - a;
-                if (pa < 0) pa = -pa;
-                int pb = p - b;
-                if (pb < 0) pb = -pb;
-                int pc = p - c;
-                if (pc < 0) pc = -pc;
-                if (pa <= pb && pa <= pc)
-                    c = a;
-                else if (pb <= pc)
-                    c = b;
-                lineOut[x] = (byte)(curLine[x] - c);
-            }
-
-            deflaterOutput.write(PAETH);
+            deflaterOutput.write(filterStrategy.filter(curLine, prevLine, lineOut, lineLen, 1, y == startY));
             deflaterOutput.write(lineOut, 0, lineLen);
 
             byte[] temp = curLine;
@@ -692,7 +959,7 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
             prevLine = temp;
         }
         deflaterOutput.finish();
-        buffer.endChunk(dataOutput);
+        chunks.end();
 
         buffer.writeInt(IEND);
         buffer.endChunk(dataOutput);
@@ -706,7 +973,7 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
         final int[] paletteArray = palette.paletteArray;
         final byte[] paletteMapping = palette.paletteMapping;
 
-        DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(buffer, deflater);
+        DeflaterOutputStream deflaterOutput = newDeflaterStream(chunks);
         DataOutputStream dataOutput = new DataOutputStream(output);
         try {
         dataOutput.write(SIGNATURE);
@@ -737,7 +1004,7 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
             buffer.write(0);
             buffer.endChunk(dataOutput);
         }
-        buffer.writeInt(IDAT);
+        chunks.begin(dataOutput, IDAT, 0);
         deflater.reset();
 
         int lineLen = pixmap.getWidth();
@@ -776,28 +1043,7 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
                 }
             }
 
-            lineOut[0] = (byte)(curLine[0] - prevLine[0]);
-
-            //Paeth
-            for (int x = 1; x < lineLen; x++) {
-                int a = curLine[x - 1] & 0xff;
-                int b = prevLine[x] & 0xff;
-                int c = prevLine[x - 1] & 0xff;
-                int p = a + b - c;
-                int pa = p - a;
-                if (pa < 0) pa = -pa;
-                int pb = p - b;
-                if (pb < 0) pb = -pb;
-                int pc = p - c;
-                if (pc < 0) pc = -pc;
-                if (pa <= pb && pa <= pc)
-                    c = a;
-                else if (pb <= pc)
-                    c = b;
-                lineOut[x] = (byte)(curLine[x] - c);
-            }
-
-            deflaterOutput.write(PAETH);
+            deflaterOutput.write(filterStrategy.filter(curLine, prevLine, lineOut, lineLen, 1, y == 0));
             deflaterOutput.write(lineOut, 0, lineLen);
 
             byte[] temp = curLine;
@@ -805,7 +1051,7 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
             prevLine = temp;
         }
         deflaterOutput.finish();
-        buffer.endChunk(dataOutput);
+        chunks.end();
 
         buffer.writeInt(IEND);
         buffer.endChunk(dataOutput);
@@ -817,7 +1063,7 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
     }
 
     private void writeGradientDithered(OutputStream output, Pixmap pixmap) {
-        DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(buffer, deflater);
+        DeflaterOutputStream deflaterOutput = newDeflaterStream(chunks);
         final int[] paletteArray = palette.paletteArray;
         final byte[] paletteMapping = palette.paletteMapping;
 
@@ -851,7 +1097,7 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
             buffer.write(0);
             buffer.endChunk(dataOutput);
         }
-        buffer.writeInt(IDAT);
+        chunks.begin(dataOutput, IDAT, 0);
         deflater.reset();
 
         final int w = pixmap.getWidth(), h = pixmap.getHeight();
@@ -908,28 +1154,7 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
                 }
             }
 
-            lineOut[0] = (byte)(curLine[0] - prevLine[0]);
-
-            //Paeth
-            for (int x = 1; x < w; x++) {
-                int a = curLine[x - 1] & 0xff;
-                int b = prevLine[x] & 0xff;
-                int c = prevLine[x - 1] & 0xff;
-                int p = a + b - c;
-                int pa = p - a;
-                if (pa < 0) pa = -pa;
-                int pb = p - b;
-                if (pb < 0) pb = -pb;
-                int pc = p - c;
-                if (pc < 0) pc = -pc;
-                if (pa <= pb && pa <= pc)
-                    c = a;
-                else if (pb <= pc)
-                    c = b;
-                lineOut[x] = (byte)(curLine[x] - c);
-            }
-
-            deflaterOutput.write(PAETH);
+            deflaterOutput.write(filterStrategy.filter(curLine, prevLine, lineOut, w, 1, y == 0));
             deflaterOutput.write(lineOut, 0, w);
 
             byte[] temp = curLine;
@@ -937,7 +1162,7 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
             prevLine = temp;
         }
         deflaterOutput.finish();
-        buffer.endChunk(dataOutput);
+        chunks.end();
 
         buffer.writeInt(IEND);
         buffer.endChunk(dataOutput);
@@ -948,7 +1173,7 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
         }
     }
     private void writePatternDithered(OutputStream output, Pixmap pixmap) {
-        DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(buffer, deflater);
+        DeflaterOutputStream deflaterOutput = newDeflaterStream(chunks);
         final int[] paletteArray = palette.paletteArray;
         final byte[] paletteMapping = palette.paletteMapping;
 
@@ -982,7 +1207,7 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
             buffer.write(0);
             buffer.endChunk(dataOutput);
         }
-        buffer.writeInt(IDAT);
+        chunks.begin(dataOutput, IDAT, 0);
         deflater.reset();
 
         final int w = pixmap.getWidth(), h = pixmap.getHeight();
@@ -1006,12 +1231,17 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
         int color, used;
         int cr, cg, cb,  usedIndex;
         final float errorMul = palette.ditherStrength * 0.375f;
+        final boolean adaptive = ditherAlgorithm == DitherAlgorithm.ADAPTIVE_PATTERN;
         for (int y = 0; y < h; y++) {
             int py = flipY ? (h - y - 1) : y;
             for (int px = 0; px < w; px++) {
                 color = pixmap.getPixel(px, py) & 0xF8F8F880;
                 if ((color & 0x80) == 0 && hasTransparent)
                     curLine[px] = 0;
+                else if (adaptive) {
+                    color |= (color >>> 5 & 0x07070700) | 0xFF;
+                    curLine[px] = (byte) palette.knollAdaptiveIndex(color, px, y);
+                }
                 else {
                     int er = 0, eg = 0, eb = 0;
                     color |= (color >>> 5 & 0x07070700) | 0xFF;
@@ -1040,28 +1270,7 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
                 }
             }
 
-            lineOut[0] = (byte)(curLine[0] - prevLine[0]);
-
-            //Paeth
-            for (int x = 1; x < w; x++) {
-                int a = curLine[x - 1] & 0xff;
-                int b = prevLine[x] & 0xff;
-                int c = prevLine[x - 1] & 0xff;
-                int p = a + b - c;
-                int pa = p - a;
-                if (pa < 0) pa = -pa;
-                int pb = p - b;
-                if (pb < 0) pb = -pb;
-                int pc = p - c;
-                if (pc < 0) pc = -pc;
-                if (pa <= pb && pa <= pc)
-                    c = a;
-                else if (pb <= pc)
-                    c = b;
-                lineOut[x] = (byte)(curLine[x] - c);
-            }
-
-            deflaterOutput.write(PAETH);
+            deflaterOutput.write(filterStrategy.filter(curLine, prevLine, lineOut, w, 1, y == 0));
             deflaterOutput.write(lineOut, 0, w);
 
             byte[] temp = curLine;
@@ -1069,7 +1278,7 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
             prevLine = temp;
         }
         deflaterOutput.finish();
-        buffer.endChunk(dataOutput);
+        chunks.end();
 
         buffer.writeInt(IEND);
         buffer.endChunk(dataOutput);
@@ -1123,12 +1332,55 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
     public void write(FileHandle file, Array<Pixmap> frames, int fps, boolean dither) {
         OutputStream output = file.write(false);
         try {
-            write(output, frames, fps, dither);
+            if (output instanceof FileOutputStream)
+                write(((FileOutputStream) output).getChannel(), frames, fps, dither);
+            else
+                write(output, frames, fps, dither);
         } finally {
             StreamUtils.closeQuietly(output);
         }
     }
 
+    /**
+     * Writes the Pixmaps to the channel without closing it, optionally dithering them; otherwise this is the same as
+     * {@link #write(OutputStream, Array, int, boolean)}. Small pieces of each chunk are gathered in a reusable direct
+     * buffer, and each frame's compressed data is sent to the channel along with them, so this makes far fewer copies
+     * and system calls than writing to an unbuffered stream. {@link #write(FileHandle, Array, int, boolean)} uses this
+     * for files.
+     *
+     * @param channel a WritableByteChannel that will not be closed
+     * @param frames  a Pixmap Array to write as a sequence of frames to the given channel
+     * @param fps     how many frames per second the animation should run at
+     * @param dither  true if this should use {@link #getDitherAlgorithm()} to dither; false to not dither
+     */
+    public void write(WritableByteChannel channel, Array<Pixmap> frames, int fps, boolean dither) {
+        ChannelOutputStream output = channelOutput(channel);
+        try {
+            write(output, frames, fps, dither);
+        } finally {
+            output.setChannel(null);
+        }
+    }
+
+    /**
+     * Writes the Pixmaps to the channel without closing it, dithering with the current {@link #getDitherAlgorithm()};
+     * see {@link #write(WritableByteChannel, Array, int, boolean)}.
+     *
+     * @param channel a WritableByteChannel that will not be closed
+     * @param frames  a Pixmap Array to write as a sequence of frames to the given channel
+     * @param fps     how many frames per second the animation should run at
+     */
+    public void write(WritableByteChannel channel, Array<Pixmap> frames, int fps) {
+        write(channel, frames, fps, true);
+    }
+
+    private ChannelOutputStream channelOutput(WritableByteChannel channel) {
+        if (channelOutput == null)
+            channelOutput = new ChannelOutputStream(1 << 16);
+        channelOutput.setChannel(channel);
+        return channelOutput;
+    }
+
     /**
      * Writes the Pixmaps to the stream without closing the stream, optionally computing an 8-bit palette from the given
      * Pixmaps. If {@link #palette} is null (the default unless it has been assigned a PaletteReducer value), this will
@@ -1142,318 +1394,383 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
      * @param dither true if this should use {@link #getDitherAlgorithm()} to dither; false to not dither
      */
     public void write(OutputStream output, Array<Pixmap> frames, int fps, boolean dither) {
-        if (palette == null)
+        if (palette == null) {
+            checkScenes(frames);
             palette = new PaletteReducer(frames);
-        if (dither)
-            write(output, frames, fps);
-        else
-            writeSolid(output, frames, fps);
+        }
+        writeFrames(output, frames, fps, dither ? ditherAlgorithm : DitherAlgorithm.NONE);
     }
 
-    private void writeSolid(OutputStream output, Array<Pixmap> frames, int fps) {
-        Pixmap pixmap = frames.first();
-        final int[] paletteArray = palette.paletteArray;
-        final byte[] paletteMapping = palette.paletteMapping;
+    /**
+     * Writes the Pixmaps to the stream without closing the stream, dithering with the current
+     * {@link #getDitherAlgorithm()}. If {@link #palette} is null (the default unless it has been assigned a
+     * PaletteReducer value), this will compute a palette from all of the frames given. Otherwise, this uses the colors
+     * already in {@link #palette}.
+     *
+     * @param output an OutputStream that will not be closed
+     * @param frames a Pixmap Array to write as a sequence of frames to the given output stream
+     * @param fps    how many frames per second the animation should run at
+     */
+    @Override
+    public void write(OutputStream output, Array<Pixmap> frames, int fps) {
+        if (palette == null) {
+            checkScenes(frames);
+            palette = new PaletteReducer(frames);
+        }
+        writeFrames(output, frames, fps, ditherAlgorithm);
+    }
 
-        DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(buffer, deflater);
-        DataOutputStream dataOutput = new DataOutputStream(output);
+    /**
+     * Starts writing an animated PNG8 to the given {@code file}, at {@code fps} frames per second, one frame at a time.
+     * Add frames in order with {@link #addFrame(Pixmap)}, then call {@link #finish()} to complete and close the file.
+     * Unlike {@link #write(FileHandle, Array, int)}, this doesn't need every frame to be available at once, so each
+     * Pixmap can be reused or disposed as soon as addFrame() returns. Frames are written straight to the file, and the
+     * frame count near the start of the file is filled in by finish(). If {@link #palette} is null when the first frame
+     * is added, the palette is computed from that frame alone, so animations whose colors change over time should set
+     * a palette first.
+     * @param file the file location to write to; any existing file with this name will be overwritten
+     * @param fps how many frames per second the animation should run at
+     * @return false if the file couldn't be opened
+     */
+    public boolean start(FileHandle file, int fps) {
+        OutputStream output = null;
         try {
-        dataOutput.write(SIGNATURE);
-
-        final int width = pixmap.getWidth();
-        final int height = pixmap.getHeight();
-
-        buffer.writeInt(IHDR);
-        buffer.writeInt(width);
-        buffer.writeInt(height);
-        buffer.writeByte(8); // 8 bits per component.
-        buffer.writeByte(COLOR_INDEXED);
-        buffer.writeByte(COMPRESSION_DEFLATE);
-        buffer.writeByte(FILTER_NONE);
-        buffer.writeByte(INTERLACE_NONE);
-        buffer.endChunk(dataOutput);
+            output = file.write(false);
+            if (!(output instanceof FileOutputStream))
+                return start(new FrameSpool(output, null, true), fps);
+            FileChannel channel = ((FileOutputStream) output).getChannel();
+            return start(new FrameSpool(channelOutput(channel), channel, true), fps);
+        } catch (Exception e) {
+            Gdx.app.error("anim8", e.getMessage());
+            StreamUtils.closeQuietly(output);
+            return false;
+        }
+    }
 
-        buffer.writeInt(PLTE);
-        for (int i = 0; i < paletteArray.length; i++) {
-            int p = paletteArray[i];
-            buffer.write(p >>> 24);
-            buffer.write(p >>> 16);
-            buffer.write(p >>> 8);
+    /**
+     * Starts writing an animated PNG8 to the given {@code output} stream, at {@code fps} frames per second, one frame
+     * at a time. Add frames in order with {@link #addFrame(Pixmap)}, then call {@link #finish()} to complete the
+     * animation; the stream is not closed. Unlike {@link #write(OutputStream, Array, int)}, this doesn't need every
+     * frame to be available at once, so each Pixmap can be reused or disposed as soon as addFrame() returns. Because the
+     * frame count has to be written before any frames, compressed frames are kept in a temporary file until finish()
+     * copies them to the stream; {@link #start(FileHandle, int)} avoids that. If {@link #palette} is null when the first
+     * frame is added, the palette is computed from that frame alone.
+     * @param output the stream to write to; the stream will not be closed
+     * @param fps how many frames per second the animation should run at
+     * @return false if the temporary file couldn't be created
+     */
+    public boolean start(OutputStream output, int fps) {
+        try {
+            return start(new FrameSpool(output, null, false), fps);
+        } catch (IOException e) {
+            Gdx.app.error("anim8", e.getMessage());
+            return false;
         }
-        buffer.endChunk(dataOutput);
+    }
 
-        boolean hasTransparent = false;
-        if (paletteArray[0] == 0) {
-            hasTransparent = true;
-            buffer.writeInt(TRNS);
-            buffer.write(0);
-            buffer.endChunk(dataOutput);
+    /**
+     * Starts writing an animated PNG8 to the given {@code channel}, at {@code fps} frames per second, one frame at a
+     * time; see {@link #start(OutputStream, int)}. If channel is a FileChannel, frames are written straight to it and
+     * the frame count is filled in by {@link #finish()}, so it must not have been opened for appending; otherwise,
+     * frames are kept in a temporary file until finish(). The channel is not closed.
+     * @param channel the channel to write to; the channel will not be closed
+     * @param fps how many frames per second the animation should run at
+     * @return false if a needed temporary file couldn't be created
+     */
+    public boolean start(WritableByteChannel channel, int fps) {
+        try {
+            return start(new FrameSpool(channelOutput(channel),
+                    channel instanceof FileChannel ? (FileChannel) channel : null, false), fps);
+        } catch (IOException e) {
+            Gdx.app.error("anim8", e.getMessage());
+            return false;
         }
-        buffer.writeInt(acTL);
-        buffer.writeInt(frames.size);
-        buffer.writeInt(0);
-        buffer.endChunk(dataOutput);
+    }
 
-        byte[] lineOut, curLine, prevLine;
-        int color;
-        int seq = 0;
-        for (int i = 0; i < frames.size; i++) {
+    private boolean start(FrameSpool spool, int fps) {
+        if (this.spool != null)
+            this.spool.close();
+        this.spool = spool;
+        streamFps = fps;
+        streamSeq = 0;
+        streamFrames = 0;
+        hasPending = false;
+        return true;
+    }
 
-            buffer.writeInt(fcTL);
-            buffer.writeInt(seq++);
-            buffer.writeInt(width);
-            buffer.writeInt(height);
-            buffer.writeInt(0);
-            buffer.writeInt(0);
-            buffer.writeShort(1);
-            buffer.writeShort(fps);
-            buffer.writeByte(0);
-            buffer.writeByte(0);
-            buffer.endChunk(dataOutput);
+    /**
+     * Adds the next frame to the animation started by {@link #start(FileHandle, int)} or
+     * {@link #start(OutputStream, int)}, dithering it with {@link #getDitherAlgorithm()}, and shown for one frame of
+     * time at the frame rate given to start(). A frame with a different size than the first is cropped or padded with
+     * transparent pixels to fit, as {@link #write(OutputStream, Array, int)} does. The frame is quantized and
+     * compressed right away, so it can be changed or disposed once this returns, but it is only written when the next
+     * frame is added (or the animation is finished), so that a following frame with exactly the same palette indices
+     * can extend how long it is shown when {@link #setFrameDifferencing(boolean)} or
+     * {@link #setDuplicateMerging(boolean)} is true (as can a nearly identical frame, with
+     * {@link #setNearDuplicatePixels(int)} or {@link #setNearDuplicateDifference(double)}).
+     * {@link #setPipelined(boolean)} has no effect here.
+     * @param frame the next frame of the animation
+     * @return true if successful
+     */
+    public boolean addFrame(Pixmap frame) {
+        return addFrame(frame, 1, streamFps);
+    }
 
-            if (i == 0) {
-                buffer.writeInt(IDAT);
-            } else {
-                pixmap = frames.get(i);
-                buffer.writeInt(fdAT);
-                buffer.writeInt(seq++);
-            }
-            deflater.reset();
+    /**
+     * Like {@link #addFrame(Pixmap)}, but shows this frame for {@code delay} milliseconds instead of one frame of time
+     * at the frame rate given to start(), so each frame can have its own duration.
+     * @param frame the next frame of the animation
+     * @param delay how many milliseconds to show this frame for; must be at most 65535
+     * @return true if successful
+     */
+    public boolean addFrame(Pixmap frame, int delay) {
+        return addFrame(frame, delay, 1000);
+    }
 
-            if (lineOutBytes == null) {
-                lineOut = (lineOutBytes = new ByteArray(width)).items;
-                curLine = (curLineBytes = new ByteArray(width)).items;
-                prevLine = (prevLineBytes = new ByteArray(width)).items;
-            } else {
-                lineOut = lineOutBytes.ensureCapacity(width);
-                curLine = curLineBytes.ensureCapacity(width);
-                prevLine = prevLineBytes.ensureCapacity(width);
-                for (int ln = 0, n = lastLineLen; ln < n; ln++)
-                    prevLine[ln] = 0;
+    private boolean addFrame(Pixmap frame, int delayNum, int delayDen) {
+        if (spool == null || frame == null)
+            return false;
+        try {
+            if (!hasPending) {
+                if (palette == null)
+                    palette = new PaletteReducer(frame);
+                streamWidth = frame.getWidth();
+                streamHeight = frame.getHeight();
+                writeAnimationHeader(spool.header, streamWidth, streamHeight);
+                spool.writeAnimationControl(buffer);
+                if (frameIndexBytes == null) {
+                    frameIndexBytes = new ByteArray(streamWidth * streamHeight);
+                    previousFrameIndexBytes = new ByteArray(streamWidth * streamHeight);
+                }
+            }
+            // a frame with a different size is cropped or padded with transparent pixels to the animation's size
+            final int width = streamWidth, height = streamHeight;
+            final boolean sameSize = frame.getWidth() == width && frame.getHeight() == height;
+            ByteArray swap = frameIndexBytes;
+            frameIndexBytes = previousFrameIndexBytes;
+            previousFrameIndexBytes = swap;
+            final byte[] indices = frameIndexBytes.ensureCapacity(width * height);
+            final byte[] previousIndices = previousFrameIndexBytes.ensureCapacity(width * height);
+            quantizeFrame(frame, (temporalCoherence && hasPending) ? previousFrame : null,
+                    indices, previousIndices, width, height, ditherAlgorithm);
+
+            if (hasPending && nearDuplicate(previousIndices, indices, width * height)) {
+                // the pending frame stays on screen, so it stays what the next frame is compared to
+                previousFrameIndexBytes = frameIndexBytes;
+                frameIndexBytes = swap;
+                FrameSpool.addDelay(pendingDelay, delayNum, delayDen);
+                return true;
             }
-            lastLineLen = width;
 
-            for (int y = 0; y < height; y++) {
-                int py = flipY ? (height - y - 1) : y;
-                for (int px = 0; px < width; px++) {
-                    color = pixmap.getPixel(px, py);
-                    if ((color & 0x80) == 0 && hasTransparent)
-                        curLine[px] = 0;
-                    else {
-                        int rr = ((color >>> 24));
-                        int gg = ((color >>> 16) & 0xFF);
-                        int bb = ((color >>> 8) & 0xFF);
-                        curLine[px] = paletteMapping[((rr << 7) & 0x7C00)
-                                | ((gg << 2) & 0x3E0)
-                                | ((bb >>> 3))];
-                    }
+            if (temporalCoherence) {
+                if (previousFrame == null) {
+                    previousFrame = new Pixmap(width, height, Pixmap.Format.RGBA8888);
+                    previousFrame.setBlending(Pixmap.Blending.None);
                 }
-
-                lineOut[0] = (byte) (curLine[0] - prevLine[0]);
-
-                //Paeth
-                for (int x = 1; x < width; x++) {
-                    int a = curLine[x - 1] & 0xff;
-                    int b = prevLine[x] & 0xff;
-                    int c = prevLine[x - 1] & 0xff;
-                    int p = a + b - c;
-                    int pa = p - a;
-                    if (pa < 0) pa = -pa;
-                    int pb = p - b;
-                    if (pb < 0) pb = -pb;
-                    int pc = p - c;
-                    if (pc < 0) pc = -pc;
-                    if (pa <= pb && pa <= pc)
-                        c = a;
-                    else if (pb <= pc)
-                        c = b;
-                    lineOut[x] = (byte) (curLine[x] - c);
+                if (!sameSize) {
+                    previousFrame.setColor(0);
+                    previousFrame.fill();
                 }
+                previousFrame.drawPixmap(frame, 0, 0);
+            }
 
-                deflaterOutput.write(PAETH);
-                deflaterOutput.write(lineOut, 0, width);
-
-                byte[] temp = curLine;
-                curLine = prevLine;
-                prevLine = temp;
+            final int[] bounds = streamBounds;
+            boolean whole = true, over = false;
+            if (hasPending && (frameDifferencing || duplicateMerging)) {
+                if (!FrameDifference.changedArea(previousIndices, indices, width, height, bounds)) {
+                    FrameSpool.addDelay(pendingDelay, delayNum, delayDen);
+                    return true;
+                }
+                whole = !frameDifferencing;
+                over = frameDifferencing && palette.paletteArray[0] == 0
+                        && canBlend(indices, previousIndices, width, bounds);
             }
+            if (hasPending)
+                writePending();
+            pendingArea[0] = whole ? 0 : bounds[0];
+            pendingArea[1] = whole ? 0 : bounds[1];
+            pendingArea[2] = whole ? width : bounds[2];
+            pendingArea[3] = whole ? height : bounds[3];
+            pendingDelay[0] = delayNum;
+            pendingDelay[1] = delayDen;
+            pendingOver = over;
+
+            pendingFrame.clear();
+            deflater.reset();
+            DeflaterOutputStream deflaterOutput = newDeflaterStream(pendingOutput);
+            writeIndexRows(deflaterOutput, indices, previousIndices, width,
+                    pendingArea[0], pendingArea[1], pendingArea[2], pendingArea[3], over);
             deflaterOutput.finish();
-            buffer.endChunk(dataOutput);
+            hasPending = true;
+            return true;
+        } catch (IOException e) {
+            Gdx.app.error("anim8", e.getMessage());
+            return false;
         }
+    }
 
-        buffer.writeInt(IEND);
-        buffer.endChunk(dataOutput);
+    private void writePending() throws IOException {
+        buffer.writeInt(fcTL);
+        buffer.writeInt(streamSeq++);
+        buffer.writeInt(pendingArea[2]);
+        buffer.writeInt(pendingArea[3]);
+        buffer.writeInt(pendingArea[0]);
+        buffer.writeInt(pendingArea[1]);
+        buffer.writeShort(pendingDelay[0]);
+        buffer.writeShort(pendingDelay[1]);
+        buffer.writeByte(0);
+        buffer.writeByte(pendingOver ? 1 : 0);
+        buffer.endChunk(spool.frames);
+
+        chunks.begin(spool.frames, streamFrames == 0 ? IDAT : fdAT, streamSeq);
+        chunks.write(pendingFrame.items, 0, pendingFrame.size);
+        streamSeq = chunks.end();
+        streamFrames++;
+    }
 
-        output.flush();
+    /**
+     * Writes the last frame added with {@link #addFrame(Pixmap)} and completes the animation started by
+     * {@link #start(FileHandle, int)} or {@link #start(OutputStream, int)}, closing the file if one was given. If no
+     * frames were added, nothing useful is written and this returns false.
+     * @return true if the whole animation was written successfully
+     */
+    public boolean finish() {
+        if (spool == null)
+            return false;
+        boolean ok = hasPending;
+        try {
+            if (hasPending) {
+                writePending();
+                spool.finish(buffer, streamFrames);
+            }
         } catch (IOException e) {
             Gdx.app.error("anim8", e.getMessage());
+            ok = false;
+        } finally {
+            spool.close();
+            spool = null;
+            hasPending = false;
+            if (channelOutput != null)
+                channelOutput.setChannel(null);
+            if (previousFrame != null) {
+                previousFrame.dispose();
+                previousFrame = null;
+            }
         }
+        return ok;
     }
 
-    @Override
-    public void write(OutputStream output, Array<Pixmap> frames, int fps) {
-        switch (ditherAlgorithm){
-            case NONE:
-                writeSolid(output, frames, fps);
-                break;
-            case GRADIENT_NOISE:
-                writeGradientDithered(output, frames, fps);
-                break;
-            default:
-                writePatternDithered(output, frames, fps);
+    private void writeFrames(OutputStream output, Array<Pixmap> frames, int fps, DitherAlgorithm algorithm) {
+        if (nearDuplicatePixels > 0 || nearDuplicateDifference > 0.0) {
+            writeStreamed(output, frames, fps, algorithm);
+            return;
         }
-    }
-
-    private void writeGradientDithered(OutputStream output, Array<Pixmap> frames, int fps) {
         Pixmap pixmap = frames.first();
-        final int[] paletteArray = palette.paletteArray;
-        final byte[] paletteMapping = palette.paletteMapping;
+        final boolean hasTransparent = palette.paletteArray[0] == 0;
 
-        DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(buffer, deflater);
+        ExecutorService quantizer = null;
+        Future<?> quantized = null;
+        DeflaterOutputStream deflaterOutput = newDeflaterStream(chunks);
         DataOutputStream dataOutput = new DataOutputStream(output);
         try {
-            dataOutput.write(SIGNATURE);
-
             final int width = pixmap.getWidth();
             final int height = pixmap.getHeight();
-
-            buffer.writeInt(IHDR);
-            buffer.writeInt(width);
-            buffer.writeInt(height);
-            buffer.writeByte(8); // 8 bits per component.
-            buffer.writeByte(COLOR_INDEXED);
-            buffer.writeByte(COMPRESSION_DEFLATE);
-            buffer.writeByte(FILTER_NONE);
-            buffer.writeByte(INTERLACE_NONE);
-            buffer.endChunk(dataOutput);
-
-            buffer.writeInt(PLTE);
-            for (int i = 0; i < paletteArray.length; i++) {
-                int p = paletteArray[i];
-                buffer.write(p >>> 24);
-                buffer.write(p >>> 16);
-                buffer.write(p >>> 8);
+            writeAnimationHeader(dataOutput, width, height);
+
+            // two ints per frame that will be written: the index in frames, and how many frames of time it lasts
+            final IntArray plan;
+            if (frameDifferencing || duplicateMerging)
+                plan = FrameDifference.distinctFrames(frames);
+            else {
+                plan = new IntArray(frames.size * 2);
+                for (int i = 0; i < frames.size; i++) {
+                    plan.add(i);
+                    plan.add(1);
+                }
             }
-            buffer.endChunk(dataOutput);
 
-            boolean hasTransparent = false;
-            if (paletteArray[0] == 0) {
-                hasTransparent = true;
-                buffer.writeInt(TRNS);
-                buffer.write(0);
-                buffer.endChunk(dataOutput);
-            }
             buffer.writeInt(acTL);
-            buffer.writeInt(frames.size);
+            buffer.writeInt(plan.size >>> 1);
             buffer.writeInt(0);
             buffer.endChunk(dataOutput);
 
-            byte[] lineOut, curLine, prevLine;
-            int color, used;
-
-            lastLineLen = width;
+            byte[] indices, previousIndices, nextIndices = null;
+            if (frameIndexBytes == null) {
+                indices = (frameIndexBytes = new ByteArray(width * height)).items;
+                previousIndices = (previousFrameIndexBytes = new ByteArray(width * height)).items;
+            } else {
+                indices = frameIndexBytes.ensureCapacity(width * height);
+                previousIndices = previousFrameIndexBytes.ensureCapacity(width * height);
+            }
 
-            byte paletteIndex;
-            float pos, adj;
-            final float strength = palette.ditherStrength * 3.333f;
+            if (pipelined && plan.size > 2) {
+                if (nextFrameIndexBytes == null)
+                    nextIndices = (nextFrameIndexBytes = new ByteArray(width * height)).items;
+                else
+                    nextIndices = nextFrameIndexBytes.ensureCapacity(width * height);
+                quantizer = Executors.newSingleThreadExecutor(new DaemonThreadFactory());
+                quantized = quantizeLater(quantizer, pixmap, null, nextIndices, indices, width, height, algorithm);
+            }
 
+            final int[] bounds = new int[4];
             int seq = 0;
-            for (int i = 0; i < frames.size; i++) {
+            for (int f = 0; f < plan.size; f += 2) {
+                Pixmap previous = pixmap;
+                pixmap = frames.get(plan.get(f));
+
+                byte[] temp;
+                if (quantizer == null) {
+                    temp = indices;
+                    indices = previousIndices;
+                    previousIndices = temp;
+                    quantizeFrame(pixmap, (temporalCoherence && f > 0) ? previous : null,
+                            indices, previousIndices, width, height, algorithm);
+                } else {
+                    // each frame's indices stay untouched until the frame after it has been written
+                    temp = previousIndices;
+                    previousIndices = indices;
+                    indices = nextIndices;
+                    nextIndices = temp;
+                    awaitQuantized(quantized);
+                    if (f + 2 < plan.size)
+                        quantized = quantizeLater(quantizer, frames.get(plan.get(f + 2)),
+                                temporalCoherence ? pixmap : null, nextIndices, indices, width, height, algorithm);
+                }
+
+                // x, y, width, and height of the area to write, and whether to blend it over the previous frame
+                int startX = 0, startY = 0, w = width, h = height;
+                boolean over = false;
+                if (frameDifferencing && f > 0) {
+                    if (FrameDifference.changedArea(previousIndices, indices, width, height, bounds)) {
+                        startX = bounds[0];
+                        startY = bounds[1];
+                        w = bounds[2];
+                        h = bounds[3];
+                        over = hasTransparent && canBlend(indices, previousIndices, width, bounds);
+                    } else {
+                        // the pixels differ, but every index is the same; write one pixel that changes nothing
+                        w = h = 1;
+                        over = hasTransparent;
+                    }
+                }
 
                 buffer.writeInt(fcTL);
                 buffer.writeInt(seq++);
-                buffer.writeInt(width);
-                buffer.writeInt(height);
-                buffer.writeInt(0);
-                buffer.writeInt(0);
-                buffer.writeShort(1);
+                buffer.writeInt(w);
+                buffer.writeInt(h);
+                buffer.writeInt(startX);
+                buffer.writeInt(startY);
+                buffer.writeShort(plan.get(f + 1));
                 buffer.writeShort(fps);
                 buffer.writeByte(0);
-                buffer.writeByte(0);
+                buffer.writeByte(over ? 1 : 0);
                 buffer.endChunk(dataOutput);
 
-                if (i == 0) {
-                    buffer.writeInt(IDAT);
-                } else {
-                    pixmap = frames.get(i);
-                    buffer.writeInt(fdAT);
-                    buffer.writeInt(seq++);
-                }
+                chunks.begin(dataOutput, f == 0 ? IDAT : fdAT, seq);
                 deflater.reset();
-
-                if (lineOutBytes == null) {
-                    lineOut = (lineOutBytes = new ByteArray(width)).items;
-                    curLine = (curLineBytes = new ByteArray(width)).items;
-                    prevLine = (prevLineBytes = new ByteArray(width)).items;
-                } else {
-                    lineOut = lineOutBytes.ensureCapacity(width);
-                    curLine = curLineBytes.ensureCapacity(width);
-                    prevLine = prevLineBytes.ensureCapacity(width);
-                    for (int ln = 0, n = lastLineLen; ln < n; ln++)
-                        prevLine[ln] = 0;
-                }
-                lastLineLen = width;
-
-                for (int y = 0; y < height; y++) {
-                    int py = flipY ? (height - y - 1) : y;
-                    for (int px = 0; px < width; px++) {
-                        color = pixmap.getPixel(px, py) & 0xF8F8F880;
-                        if ((color & 0x80) == 0 && hasTransparent)
-                            curLine[px] = 0;
-                        else {
-                            color |= (color >>> 5 & 0x07070700) | 0xFF;
-                            int rr = ((color >>> 24)       );
-                            int gg = ((color >>> 16) & 0xFF);
-                            int bb = ((color >>> 8)  & 0xFF);
-                            paletteIndex =
-                                    paletteMapping[((rr << 7) & 0x7C00)
-                                            | ((gg << 2) & 0x3E0)
-                                            | ((bb >>> 3))];
-                            used = paletteArray[paletteIndex & 0xFF];
-                            pos = (px * 0.06711056f + y * 0.00583715f);
-                            pos -= (int)pos;
-                            pos *= 52.9829189f;
-                            pos -= (int)pos;
-                            adj = (pos * pos - 0.3f) * strength;
-                            rr = MathUtils.clamp((int) (rr + (adj * (rr - (used >>> 24       )))), 0, 0xFF);
-                            gg = MathUtils.clamp((int) (gg + (adj * (gg - (used >>> 16 & 0xFF)))), 0, 0xFF);
-                            bb = MathUtils.clamp((int) (bb + (adj * (bb - (used >>> 8  & 0xFF)))), 0, 0xFF);
-                            curLine[px] = paletteMapping[((rr << 7) & 0x7C00)
-                                    | ((gg << 2) & 0x3E0)
-                                    | ((bb >>> 3))];
-
-                        }
-                    }
-                    lineOut[0] = (byte) (curLine[0] - prevLine[0]);
-
-                    //Paeth
-                    for (int x = 1; x < width; x++) {
-                        int a = curLine[x - 1] & 0xff;
-                        int b = prevLine[x] & 0xff;
-                        int c = prevLine[x - 1] & 0xff;
-                        int p = a + b - c;
-                        int pa = p - a;
-                        if (pa < 0) pa = -pa;
-                        int pb = p - b;
-                        if (pb < 0) pb = -pb;
-                        int pc = p - c;
-                        if (pc < 0) pc = -pc;
-                        if (pa <= pb && pa <= pc)
-                            c = a;
-                        else if (pb <= pc)
-                            c = b;
-                        lineOut[x] = (byte) (curLine[x] - c);
-                    }
-
-                    deflaterOutput.write(PAETH);
-                    deflaterOutput.write(lineOut, 0, width);
-
-                    byte[] temp = curLine;
-                    curLine = prevLine;
-                    prevLine = temp;
-                }
+                writeIndexRows(deflaterOutput, indices, previousIndices, width, startX, startY, w, h, over);
                 deflaterOutput.finish();
-                buffer.endChunk(dataOutput);
+                seq = chunks.end();
             }
 
             buffer.writeInt(IEND);
@@ -1462,175 +1779,320 @@ public class PNG8 implements AnimationWriter, Dithered, Disposable {
             output.flush();
         } catch (IOException e) {
             Gdx.app.error("anim8", e.getMessage());
+        } finally {
+            if (quantizer != null)
+                quantizer.shutdownNow();
         }
     }
 
-    private void writePatternDithered(OutputStream output, Array<Pixmap> frames, int fps) {
-        Pixmap pixmap = frames.first();
-        final int[] paletteArray = palette.paletteArray;
-        final byte[] paletteMapping = palette.paletteMapping;
-
-        DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(buffer, deflater);
-        DataOutputStream dataOutput = new DataOutputStream(output);
+    /**
+     * Writes frames through {@link #start(OutputStream, int)} and {@link #addFrame(Pixmap)}, which is needed when the
+     * number of frames that will be written isn't known until they have all been quantized. Runs of identical frames
+     * are still found before quantizing, so only the first of each run is quantized.
+     */
+    private void writeStreamed(OutputStream output, Array<Pixmap> frames, int fps, DitherAlgorithm algorithm) {
+        final DitherAlgorithm original = ditherAlgorithm;
+        ditherAlgorithm = algorithm;
         try {
-            dataOutput.write(SIGNATURE);
+            if (!start(output, fps))
+                return;
+            final IntArray plan = FrameDifference.distinctFrames(frames);
+            for (int f = 0; f < plan.size; f += 2) {
+                if (!addFrame(frames.get(plan.get(f)), plan.get(f + 1), fps))
+                    break;
+            }
+            finish();
+        } finally {
+            ditherAlgorithm = original;
+        }
+    }
 
-            final int width = pixmap.getWidth();
-            final int height = pixmap.getHeight();
+    /**
+     * Writes the PNG signature and every chunk that comes before acTL: IHDR, PLTE with the colors of {@link #palette},
+     * and tRNS if the palette has a transparent color.
+     */
+    private void writeAnimationHeader(DataOutputStream dataOutput, int width, int height) throws IOException {
+        final int[] paletteArray = palette.paletteArray;
+        dataOutput.write(SIGNATURE);
 
-            buffer.writeInt(IHDR);
-            buffer.writeInt(width);
-            buffer.writeInt(height);
-            buffer.writeByte(8); // 8 bits per component.
-            buffer.writeByte(COLOR_INDEXED);
-            buffer.writeByte(COMPRESSION_DEFLATE);
-            buffer.writeByte(FILTER_NONE);
-            buffer.writeByte(INTERLACE_NONE);
-            buffer.endChunk(dataOutput);
+        buffer.writeInt(IHDR);
+        buffer.writeInt(width);
+        buffer.writeInt(height);
+        buffer.writeByte(8); // 8 bits per component.
+        buffer.writeByte(COLOR_INDEXED);
+        buffer.writeByte(COMPRESSION_DEFLATE);
+        buffer.writeByte(FILTER_NONE);
+        buffer.writeByte(INTERLACE_NONE);
+        buffer.endChunk(dataOutput);
 
-            buffer.writeInt(PLTE);
-            for (int i = 0; i < paletteArray.length; i++) {
-                int p = paletteArray[i];
-                buffer.write(p >>> 24);
-                buffer.write(p >>> 16);
-                buffer.write(p >>> 8);
-            }
+        buffer.writeInt(PLTE);
+        for (int i = 0; i < paletteArray.length; i++) {
+            int p = paletteArray[i];
+            buffer.write(p >>> 24);
+            buffer.write(p >>> 16);
+            buffer.write(p >>> 8);
+        }
+        buffer.endChunk(dataOutput);
+
+        if (paletteArray[0] == 0) {
+            buffer.writeInt(TRNS);
+            buffer.write(0);
             buffer.endChunk(dataOutput);
+        }
+    }
 
-            boolean hasTransparent = false;
-            if (paletteArray[0] == 0) {
-                hasTransparent = true;
-                buffer.writeInt(TRNS);
-                buffer.write(0);
-                buffer.endChunk(dataOutput);
+    /**
+     * Returns true if the area given by bounds can be blended over the previous frame, writing index 0 (transparent)
+     * for unchanged pixels; that only works if no pixel in the area needs to become transparent.
+     */
+    private static boolean canBlend(byte[] indices, byte[] previousIndices, int width, int[] bounds) {
+        final int startX = bounds[0], startY = bounds[1], w = bounds[2], h = bounds[3];
+        for (int y = startY; y < startY + h; y++) {
+            for (int x = startX, i = y * width + x; x < startX + w; x++, i++) {
+                if (indices[i] == 0 && previousIndices[i] != 0)
+                    return false;
             }
-            buffer.writeInt(acTL);
-            buffer.writeInt(frames.size);
-            buffer.writeInt(0);
-            buffer.endChunk(dataOutput);
+        }
+        return true;
+    }
 
-            byte[] lineOut, curLine, prevLine;
-            
-            lastLineLen = width;
+    /**
+     * Filters the rows of indices (a frame {@code width} pixels wide) in the given area with the current
+     * {@link FilterStrategy}, and writes them to out. If over is true, unchanged pixels are written as index 0.
+     */
+    private void writeIndexRows(OutputStream out, byte[] indices, byte[] previousIndices, int width,
+                                int startX, int startY, int w, int h, boolean over) throws IOException {
+        byte[] lineOut, curLine, prevLine;
+        if (lineOutBytes == null) {
+            lineOut = (lineOutBytes = new ByteArray(width)).items;
+            curLine = (curLineBytes = new ByteArray(width)).items;
+            prevLine = (prevLineBytes = new ByteArray(width)).items;
+        } else {
+            lineOut = lineOutBytes.ensureCapacity(width);
+            curLine = curLineBytes.ensureCapacity(width);
+            prevLine = prevLineBytes.ensureCapacity(width);
+            for (int ln = 0, n = Math.max(lastLineLen, width); ln < n; ln++)
+                prevLine[ln] = 0;
+        }
+        lastLineLen = width;
 
-            int color, used;
-            int cr, cg, cb,  usedIndex;
-            final float errorMul = palette.ditherStrength * 0.375f;
+        for (int y = 0; y < h; y++) {
+            int i = (startY + y) * width + startX;
+            if (over) {
+                for (int x = 0; x < w; x++, i++)
+                    curLine[x] = indices[i] == previousIndices[i] ? 0 : indices[i];
+            } else
+                System.arraycopy(indices, i, curLine, 0, w);
 
-            int seq = 0;
-            for (int i = 0; i < frames.size; i++) {
+            out.write(filterStrategy.filter(curLine, prevLine, lineOut, w, 1, y == 0));
+            out.write(lineOut, 0, w);
 
-                buffer.writeInt(fcTL);
-                buffer.writeInt(seq++);
-                buffer.writeInt(width);
-                buffer.writeInt(height);
-                buffer.writeInt(0);
-                buffer.writeInt(0);
-                buffer.writeShort(1);
-                buffer.writeShort(fps);
-                buffer.writeByte(0);
-                buffer.writeByte(0);
-                buffer.endChunk(dataOutput);
+            byte[] temp = curLine;
+            curLine = prevLine;
+            prevLine = temp;
+        }
+    }
 
-                if (i == 0) {
-                    buffer.writeInt(IDAT);
-                } else {
-                    pixmap = frames.get(i);
-                    buffer.writeInt(fdAT);
-                    buffer.writeInt(seq++);
-                }
-                deflater.reset();
+    /**
+     * Quantizes the width by height area of the animation that pixmap covers; pixmap can be smaller or larger than that
+     * area, and any pixels past its edges are treated as transparent, since getPixel() returns 0 for them.
+     */
+    private void quantizeFrame(Pixmap pixmap, Pixmap previous, byte[] indices, byte[] previousIndices,
+                               int width, int height, DitherAlgorithm algorithm) {
+        switch (algorithm) {
+            case NONE:
+                quantizeSolid(pixmap, previous, indices, previousIndices, width, height);
+                break;
+            case GRADIENT_NOISE:
+                quantizeGradientDithered(pixmap, previous, indices, previousIndices, width, height);
+                break;
+            default:
+                quantizePatternDithered(pixmap, previous, indices, previousIndices, width, height,
+                        algorithm == DitherAlgorithm.ADAPTIVE_PATTERN);
+        }
+    }
 
-                if (lineOutBytes == null) {
-                    lineOut = (lineOutBytes = new ByteArray(width)).items;
-                    curLine = (curLineBytes = new ByteArray(width)).items;
-                    prevLine = (prevLineBytes = new ByteArray(width)).items;
-                } else {
-                    lineOut = lineOutBytes.ensureCapacity(width);
-                    curLine = curLineBytes.ensureCapacity(width);
-                    prevLine = prevLineBytes.ensureCapacity(width);
-                    for (int ln = 0, n = lastLineLen; ln < n; ln++)
-                        prevLine[ln] = 0;
-                }
-                lastLineLen = width;
-
-                for (int y = 0; y < height; y++) {
-                    int py = flipY ? (height - y - 1) : y;
-                    for (int px = 0; px < width; px++) {
-                        color = pixmap.getPixel(px, py) & 0xF8F8F880;
-                        if ((color & 0x80) == 0 && hasTransparent)
-                            curLine[px] = 0;
-                        else {
-                            int er = 0, eg = 0, eb = 0;
-                            color |= (color >>> 5 & 0x07070700) | 0xFF;
-                            cr = (color >>> 24);
-                            cg = (color >>> 16 & 0xFF);
-                            cb = (color >>> 8 & 0xFF);
-                            for (int c = 0; c < palette.candidates.length; c++) {
-                                int rr = MathUtils.clamp((int) (cr + er * errorMul), 0, 255);
-                                int gg = MathUtils.clamp((int) (cg + eg * errorMul), 0, 255);
-                                int bb = MathUtils.clamp((int) (cb + eb * errorMul), 0, 255);
-                                usedIndex = paletteMapping[((rr << 7) & 0x7C00)
-                                        | ((gg << 2) & 0x3E0)
-                                        | ((bb >>> 3))] & 0xFF;
-                                palette.candidates[c] = paletteArray[usedIndex];
-                                used = palette.gammaArray[usedIndex];
-                                er += cr - (used >>> 24);
-                                eg += cg - (used >>> 16 & 0xFF);
-                                eb += cb - (used >>> 8 & 0xFF);
-                            }
-                            palette.sort16(palette.candidates);
-                            curLine[px] = paletteMapping[
-                                    PaletteReducer.shrink(palette.candidates[PaletteReducer.thresholdMatrix[
-                                            ((int) (px * 0x0.C13FA9A902A6328Fp3f + y * 0x0.91E10DA5C79E7B1Dp2f) & 3) ^
-                                                    ((px & 3) | (y & 3) << 2)
-                                            ]])];
-                        }
-                    }
-                    lineOut[0] = (byte) (curLine[0] - prevLine[0]);
-
-                    //Paeth
-                    for (int x = 1; x < width; x++) {
-                        int a = curLine[x - 1] & 0xff;
-                        int b = prevLine[x] & 0xff;
-                        int c = prevLine[x - 1] & 0xff;
-                        int p = a + b - c;
-                        int pa = p - a;
-                        if (pa < 0) pa = -pa;
-                        int pb = p - b;
-                        if (pb < 0) pb = -pb;
-                        int pc = p - c;
-                        if (pc < 0) pc = -pc;
-                        if (pa <= pb && pa <= pc)
-                            c = a;
-                        else if (pb <= pc)
-                            c = b;
-                        lineOut[x] = (byte) (curLine[x] - c);
-                    }
+    private Future<?> quantizeLater(ExecutorService quantizer, final Pixmap pixmap, final Pixmap previous,
+                                    final byte[] indices, final byte[] previousIndices,
+                                    final int width, final int height, final DitherAlgorithm algorithm) {
+        return quantizer.submit(new Runnable() {
+            @Override
+            public void run() {
+                quantizeFrame(pixmap, previous, indices, previousIndices, width, height, algorithm);
+            }
+        });
+    }
 
-                    deflaterOutput.write(PAETH);
-                    deflaterOutput.write(lineOut, 0, width);
+    private static void awaitQuantized(Future<?> quantized) throws IOException {
+        try {
+            quantized.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
 
-                    byte[] temp = curLine;
-                    curLine = prevLine;
-                    prevLine = temp;
+    /**
+     * Maps every pixel of {@code pixmap} to its closest palette index without dithering, storing the indices in
+     * {@code indices} in output order (flipped if {@link #setFlipY(boolean)} is true). If {@code previous} is non-null,
+     * any pixel that is the same in previous and pixmap copies its index from {@code previousIndices} instead.
+     */
+    private void quantizeSolid(Pixmap pixmap, Pixmap previous, byte[] indices, byte[] previousIndices,
+                               int width, int height) {
+        final byte[] paletteMapping = palette.paletteMapping;
+        final boolean hasTransparent = palette.paletteArray[0] == 0;
+        int color;
+        for (int y = 0, i = 0; y < height; y++) {
+            int py = flipY ? (height - y - 1) : y;
+            for (int px = 0; px < width; px++, i++) {
+                color = pixmap.getPixel(px, py);
+                if (previous != null && color == previous.getPixel(px, py))
+                    indices[i] = previousIndices[i];
+                else if ((color & 0x80) == 0 && hasTransparent)
+                    indices[i] = 0;
+                else {
+                    int rr = ((color >>> 24));
+                    int gg = ((color >>> 16) & 0xFF);
+                    int bb = ((color >>> 8) & 0xFF);
+                    indices[i] = paletteMapping[((rr << 7) & 0x7C00)
+                            | ((gg << 2) & 0x3E0)
+                            | ((bb >>> 3))];
                 }
-                deflaterOutput.finish();
-                buffer.endChunk(dataOutput);
             }
+        }
+    }
 
-            buffer.writeInt(IEND);
-            buffer.endChunk(dataOutput);
+    /**
+     * Like {@link #quantizeSolid(Pixmap, Pixmap, byte[], byte[], int, int)}, but dithers with a variant on Jorge Jimenez'
+     * Gradient Interleaved Noise.
+     */
+    private void quantizeGradientDithered(Pixmap pixmap, Pixmap previous, byte[] indices, byte[] previousIndices,
+                                          int width, int height) {
+        final int[] paletteArray = palette.paletteArray;
+        final byte[] paletteMapping = palette.paletteMapping;
+        final boolean hasTransparent = paletteArray[0] == 0;
+        int color, used;
+        byte paletteIndex;
+        float pos, adj;
+        final float strength = palette.ditherStrength * 3.333f;
+        for (int y = 0, i = 0; y < height; y++) {
+            int py = flipY ? (height - y - 1) : y;
+            for (int px = 0; px < width; px++, i++) {
+                color = pixmap.getPixel(px, py);
+                if (previous != null && color == previous.getPixel(px, py)) {
+                    indices[i] = previousIndices[i];
+                    continue;
+                }
+                color &= 0xF8F8F880;
+                if ((color & 0x80) == 0 && hasTransparent)
+                    indices[i] = 0;
+                else {
+                    color |= (color >>> 5 & 0x07070700) | 0xFF;
+                    int rr = ((color >>> 24)       );
+                    int gg = ((color >>> 16) & 0xFF);
+                    int bb = ((color >>> 8)  & 0xFF);
+                    paletteIndex =
+                            paletteMapping[((rr << 7) & 0x7C00)
+                                    | ((gg << 2) & 0x3E0)
+                                    | ((bb >>> 3))];
+                    used = paletteArray[paletteIndex & 0xFF];
+                    pos = (px * 0.06711056f + y * 0.00583715f);
+                    pos -= (int)pos;
+                    pos *= 52.9829189f;
+                    pos -= (int)pos;
+                    adj = (pos * pos - 0.3f) * strength;
+                    rr = MathUtils.clamp((int) (rr + (adj * (rr - (used >>> 24       )))), 0, 0xFF);
+                    gg = MathUtils.clamp((int) (gg + (adj * (gg - (used >>> 16 & 0xFF)))), 0, 0xFF);
+                    bb = MathUtils.clamp((int) (bb + (adj * (bb - (used >>> 8  & 0xFF)))), 0, 0xFF);
+                    indices[i] = paletteMapping[((rr << 7) & 0x7C00)
+                            | ((gg << 2) & 0x3E0)
+                            | ((bb >>> 3))];
+                }
+            }
+        }
+    }
 
-            output.flush();
-        } catch (IOException e) {
-            Gdx.app.error("anim8", e.getMessage());
+    /**
+     * Like {@link #quantizeSolid(Pixmap, Pixmap, byte[], byte[], int, int)}, but dithers with a skewed variant on Thomas Knoll's
+     * pattern dither, or {@link PaletteReducer#reduceKnollAdaptive(Pixmap)}'s faster variant if {@code adaptive} is true.
+     */
+    private void quantizePatternDithered(Pixmap pixmap, Pixmap previous, byte[] indices, byte[] previousIndices,
+                                         int width, int height, boolean adaptive) {
+        final int[] paletteArray = palette.paletteArray;
+        final byte[] paletteMapping = palette.paletteMapping;
+        final boolean hasTransparent = paletteArray[0] == 0;
+        int color, used;
+        int cr, cg, cb,  usedIndex;
+        final float errorMul = palette.ditherStrength * 0.375f;
+        for (int y = 0, i = 0; y < height; y++) {
+            int py = flipY ? (height - y - 1) : y;
+            for (int px = 0; px < width; px++, i++) {
+                color = pixmap.getPixel(px, py);
+                if (previous != null && color == previous.getPixel(px, py)) {
+                    indices[i] = previousIndices[i];
+                    continue;
+                }
+                color &= 0xF8F8F880;
+                if ((color & 0x80) == 0 && hasTransparent)
+                    indices[i] = 0;
+                else if (adaptive) {
+                    color |= (color >>> 5 & 0x07070700) | 0xFF;
+                    indices[i] = (byte) palette.knollAdaptiveIndex(color, px, y);
+                }
+                else {
+                    int er = 0, eg = 0, eb = 0;
+                    color |= (color >>> 5 & 0x07070700) | 0xFF;
+                    cr = (color >>> 24);
+                    cg = (color >>> 16 & 0xFF);
+                    cb = (color >>> 8 & 0xFF);
+                    for (int c = 0; c < palette.candidates.length; c++) {
+                        int rr = MathUtils.clamp((int) (cr + er * errorMul), 0, 255);
+                        int gg = MathUtils.clamp((int) (cg + eg * errorMul), 0, 255);
+                        int bb = MathUtils.clamp((int) (cb + eb * errorMul), 0, 255);
+                        usedIndex = paletteMapping[((rr << 7) & 0x7C00)
+                                | ((gg << 2) & 0x3E0)
+                                | ((bb >>> 3))] & 0xFF;
+                        palette.candidates[c] = paletteArray[usedIndex];
+                        used = palette.gammaArray[usedIndex];
+                        er += cr - (used >>> 24);
+                        eg += cg - (used >>> 16 & 0xFF);
+                        eb += cb - (used >>> 8 & 0xFF);
+                    }
+                    palette.sort16(palette.candidates);
+                    indices[i] = paletteMapping[
+                            PaletteReducer.shrink(palette.candidates[PaletteReducer.thresholdMatrix[
+                                    ((int) (px * 0x0.C13FA9A902A6328Fp3f + y * 0x0.91E10DA5C79E7B1Dp2f) & 3) ^
+                                            ((px & 3) | (y & 3) << 2)
+                                    ]])];
+                }
+            }
         }
     }
 
-    /** Should probably be done explicitly; finalize() has been scheduled for removal from the JVM. */
+    /**
+     * Should probably be done explicitly; finalize() has been scheduled for removal from the JVM. If an animation was
+     * started with {@link #start(OutputStream, int)} but not finished, it is abandoned and its output is closed.
+     */
     public void dispose () {
         deflater.end();
+        if (spool != null) {
+            // an animation was started but never finished, so its output and any spool file are closed here
+            spool.close();
+            spool = null;
+            hasPending = false;
+            if (channelOutput != null)
+                channelOutput.setChannel(null);
+        }
+        if (previousFrame != null) {
+            previousFrame.dispose();
+            previousFrame = null;
+        }
+        if (deflatePool != null) {
+            deflatePool.shutdown();
+            deflatePool = null;
+        }
     }
 
 }
@@ -250,6 +250,22 @@ public class PaletteReducer {
         analyze(pixmap, threshold);
     }
 
+    /**
+     * Constructs a PaletteReducer that shares the palette mapping of {@code other}, but has its own copy of the
+     * palette, gamma table, and dither strength, plus its own scratch space for dithering. This lets several threads
+     * reduce colors with the same palette at the same time, as long as neither PaletteReducer has its palette changed
+     * while the other is in use.
+     *
+     * @param other another PaletteReducer to share a palette with
+     */
+    PaletteReducer(PaletteReducer other) {
+        paletteMapping = other.paletteMapping;
+        System.arraycopy(other.paletteArray, 0, paletteArray, 0, 256);
+        System.arraycopy(other.gammaArray, 0, gammaArray, 0, 256);
+        ditherStrength = other.ditherStrength;
+        halfDitherStrength = other.halfDitherStrength;
+    }
+
     /**
      * Color difference metric; returns large numbers even for smallish differences.
      * If this returns 250 or more, the colors may be perceptibly different; 500 or more almost guarantees it.
@@ -774,6 +790,7 @@ public class PaletteReducer {
     }
     
     void calculateGamma(){
+        adaptiveColor = 0;
         double gamma = 2.0 - this.ditherStrength * 1.666;
         for (int i = 0; i < 256; i++) {
             int color = paletteArray[i];
@@ -1093,6 +1110,23 @@ public class PaletteReducer {
 
     final int[] candidates = new int[16];
 
+    /**
+     * The sorted candidates {@link #knollAdaptiveIndex(int, int, int)} found for {@link #adaptiveColor}. These are kept
+     * apart from {@link #candidates}, which the other pattern dithers overwrite, so they stay valid between calls.
+     */
+    private final int[] adaptiveCandidates = new int[16];
+
+    /**
+     * The last opaque color given to {@link #knollAdaptiveIndex(int, int, int)}, or 0 if nothing is cached; the sorted
+     * {@link #adaptiveCandidates} (or {@link #adaptiveIndex}, if it isn't -1) are only valid for this color.
+     */
+    private int adaptiveColor = 0;
+    /**
+     * If the last color given to {@link #knollAdaptiveIndex(int, int, int)} will always produce the same palette index,
+     * this is that index; otherwise this is -1 and {@link #adaptiveCandidates} must be consulted.
+     */
+    private int adaptiveIndex = -1;
+
     /**
      * Compares items in ints by their luma, looking up items by the indices a and b, and swaps the two given indices if
      * the item at a has higher luma than the item at b. This is protected rather than private because it's more likely
@@ -1286,6 +1320,86 @@ public class PaletteReducer {
     }
 
 
+    /**
+     * Reduces a Pixmap to the palette this knows by using the same skewed pattern dither as
+     * {@link #reduceKnollRoberts(Pixmap)}, but skipping the expensive part of that algorithm wherever it can't make a
+     * difference. If a color is already in the palette (it maps to a palette color in the same RGB555 cell), that
+     * palette color is used without dithering; if a color is the same as the last one seen (as in flat areas of
+     * pixel art or UI), the already-sorted candidates from that color are reused. This is usually several times faster
+     * than reduceKnollRoberts() on images with large flat areas or few colors, and looks the same on smooth gradients.
+     * @see #reduceKnollRoberts(Pixmap) The non-adaptive version this is based on
+     * @param pixmap a Pixmap that will be modified
+     * @return {@code pixmap}, after modifications
+     */
+    public Pixmap reduceKnollAdaptive (Pixmap pixmap) {
+        boolean hasTransparent = (paletteArray[0] == 0);
+        final int lineLen = pixmap.getWidth(), h = pixmap.getHeight();
+        Pixmap.Blending blending = pixmap.getBlending();
+        pixmap.setBlending(Pixmap.Blending.None);
+        int color;
+        for (int y = 0; y < h; y++) {
+            for (int px = 0; px < lineLen; px++) {
+                color = pixmap.getPixel(px, y);
+                if ((color & 0x80) == 0 && hasTransparent)
+                    pixmap.drawPixel(px, y, 0);
+                else
+                    pixmap.drawPixel(px, y, paletteArray[knollAdaptiveIndex(color | 0xFF, px, y)]);
+            }
+        }
+        pixmap.setBlending(blending);
+        return pixmap;
+    }
+
+    /**
+     * Finds the palette index that the adaptive pattern dither in {@link #reduceKnollAdaptive(Pixmap)} would use for
+     * the given opaque RGBA8888 color at the given position. The first candidate is checked before the full 16-color
+     * Knoll search: if it is in the same RGB555 cell as color, it is returned directly. Otherwise, the candidates are
+     * computed and sorted once per run of identical colors, and if all 16 are the same, that one index is used for the
+     * rest of the run. This is shared by PNG8 and AnimatedGif, which call it per-pixel.
+     * @param color an opaque RGBA8888 color (its low byte should be 0xFF)
+     * @param px the x-position of the pixel, used to select from the threshold matrix
+     * @param y the y-position of the pixel, used to select from the threshold matrix
+     * @return an index into {@link #paletteArray}, from 0 to 255 inclusive
+     */
+    int knollAdaptiveIndex(final int color, final int px, final int y) {
+        if (color != adaptiveColor) {
+            adaptiveColor = color;
+            final int cr = (color >>> 24), cg = (color >>> 16 & 0xFF), cb = (color >>> 8 & 0xFF);
+            int usedIndex = paletteMapping[shrink(color)] & 0xFF;
+            if (shrink(paletteArray[usedIndex]) == shrink(color))
+                return adaptiveIndex = usedIndex;
+            final float errorMul = ditherStrength * 0.375f;
+            int er = 0, eg = 0, eb = 0, used;
+            for (int c = 0; c < adaptiveCandidates.length; c++) {
+                int rr = MathUtils.clamp((int) (cr + er * errorMul), 0, 255);
+                int gg = MathUtils.clamp((int) (cg + eg * errorMul), 0, 255);
+                int bb = MathUtils.clamp((int) (cb + eb * errorMul), 0, 255);
+                usedIndex = paletteMapping[((rr << 7) & 0x7C00)
+                        | ((gg << 2) & 0x3E0)
+                        | ((bb >>> 3))] & 0xFF;
+                adaptiveCandidates[c] = paletteArray[usedIndex];
+                used = gammaArray[usedIndex];
+                er += cr - (used >>> 24);
+                eg += cg - (used >>> 16 & 0xFF);
+                eb += cb - (used >>> 8 & 0xFF);
+            }
+            adaptiveIndex = usedIndex;
+            for (int c = 1; c < adaptiveCandidates.length; c++) {
+                if (adaptiveCandidates[c] != adaptiveCandidates[0]) {
+                    adaptiveIndex = -1;
+                    sort16(adaptiveCandidates);
+                    break;
+                }
+            }
+        }
+        if (adaptiveIndex >= 0)
+            return adaptiveIndex;
+        return paletteMapping[shrink(adaptiveCandidates[thresholdMatrix[
+                ((int) (px * 0x0.C13FA9A902A6328Fp3f + y * 0x0.91E10DA5C79E7B1Dp2f) & 3) ^
+                        ((px & 3) | (y & 3) << 2)
+                ]])] & 0xFF;
+    }
+
     /**
      * Retrieves a random non-0 color index for the palette this would reduce to, with a higher likelihood for colors
      * that are used more often in reductions (those with few similar colors). The index is returned as a byte that,
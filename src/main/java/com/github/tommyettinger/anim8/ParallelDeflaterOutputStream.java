@@ -0,0 +1,212 @@
+package com.github.tommyettinger.anim8;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A DeflaterOutputStream that compresses on several threads at once, in the style of pigz. Input is split into blocks
+ * of {@link #BLOCK_SIZE} bytes; each block is compressed as raw deflate data by its own Deflater on an
+ * ExecutorService, using the last 32 KB of the previous block as a preset dictionary so compression barely suffers.
+ * Every block but the last ends with a sync flush, so the compressed blocks can simply be written one after another,
+ * between a zlib header and a trailer holding the Adler-32 of the whole input (combined from each block's Adler-32).
+ * The result is one standard zlib stream, readable by any PNG decoder.
+ * <br>
+ * Like the DeflaterOutputStream usage elsewhere in this library, {@link #finish()} ends one zlib stream and leaves
+ * this ready to start another, so one of these can be used for every frame of an animation. The Deflater given to the
+ * constructor is only there to satisfy the superclass; it is never used here.
+ */
+class ParallelDeflaterOutputStream extends DeflaterOutputStream {
+    /**
+     * How many bytes of uncompressed input go into each block; this is the same as pigz's default.
+     */
+    static final int BLOCK_SIZE = 1 << 17;
+    static private final int DICTIONARY_SIZE = 1 << 15;
+    static private final int BASE = 65521;
+
+    private final ExecutorService pool;
+    private final int level;
+    private final int maxPending;
+    private final ArrayDeque<Future<Block>> pending = new ArrayDeque<>();
+    private byte[] current = new byte[BLOCK_SIZE], previous;
+    private int count;
+    private boolean started;
+    private int adler = 1;
+
+    /**
+     * @param out where the zlib stream is written
+     * @param def not used for compression, only passed to the superclass
+     * @param level the deflate compression level, from 0 to 9, or -1 for the default
+     * @param threads how many threads pool has; this also limits how many blocks can be in memory at once
+     * @param pool the ExecutorService that compresses blocks; it is not shut down by this
+     */
+    ParallelDeflaterOutputStream(OutputStream out, Deflater def, int level, int threads, ExecutorService pool) {
+        super(out, def);
+        this.pool = pool;
+        this.level = level;
+        this.maxPending = Math.max(threads, 1) * 2;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == BLOCK_SIZE)
+            submit(false);
+        current[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == BLOCK_SIZE)
+                submit(false);
+            int n = Math.min(len, BLOCK_SIZE - count);
+            System.arraycopy(b, off, current, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Compresses any remaining input, writes all compressed blocks and the Adler-32 trailer, and resets this so the
+     * next write starts a new zlib stream.
+     */
+    @Override
+    public void finish() throws IOException {
+        submit(true);
+        while (!pending.isEmpty())
+            writeBlock(pending.removeFirst());
+        out.write(adler >>> 24);
+        out.write(adler >>> 16);
+        out.write(adler >>> 8);
+        out.write(adler);
+        started = false;
+        adler = 1;
+        previous = null;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    private void submit(boolean last) throws IOException {
+        if (!started) {
+            // CMF is always 0x78, for deflate with a 32K window; FLEVEL matches what java.util.zip.Deflater writes.
+            int flevel = level == 0 || level == 1 ? 0 : level >= 2 && level <= 5 ? 1 : level == 6 || level < 0 ? 2 : 3;
+            int flg = flevel << 6;
+            flg += 31 - (0x7800 + flg) % 31;
+            out.write(0x78);
+            out.write(flg);
+            started = true;
+        }
+        pending.addLast(pool.submit(new Block(current, count, previous, level, last)));
+        previous = current;
+        current = new byte[BLOCK_SIZE];
+        count = 0;
+        while (pending.size() > maxPending)
+            writeBlock(pending.removeFirst());
+    }
+
+    private void writeBlock(Future<Block> future) throws IOException {
+        Block block;
+        try {
+            block = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        out.write(block.output, 0, block.outputLength);
+        adler = adler32Combine(adler, block.adler, block.length);
+    }
+
+    /**
+     * Combines two Adler-32 checksums as if the data for the second had been appended to the data for the first.
+     * This is the same algorithm as zlib's {@code adler32_combine()}.
+     * @param adler1 the Adler-32 of the first sequence
+     * @param adler2 the Adler-32 of the second sequence
+     * @param length2 how many bytes are in the second sequence
+     * @return the Adler-32 of both sequences, one after the other
+     */
+    static int adler32Combine(int adler1, int adler2, long length2) {
+        long rem = length2 % BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = rem * sum1 % BASE;
+        sum1 += (adler2 & 0xFFFF) + BASE - 1;
+        sum2 += (adler1 >>> 16) + (adler2 >>> 16) + BASE - rem;
+        if (sum1 >= BASE) sum1 -= BASE;
+        if (sum1 >= BASE) sum1 -= BASE;
+        if (sum2 >= BASE << 1) sum2 -= BASE << 1;
+        if (sum2 >= BASE) sum2 -= BASE;
+        return (int) (sum1 | sum2 << 16);
+    }
+
+    private static final class Block implements Callable<Block> {
+        final byte[] input, dictionary;
+        final int length, level;
+        final boolean last;
+        byte[] output;
+        int outputLength;
+        int adler;
+
+        Block(byte[] input, int length, byte[] dictionary, int level, boolean last) {
+            this.input = input;
+            this.length = length;
+            this.dictionary = dictionary;
+            this.level = level;
+            this.last = last;
+        }
+
+        @Override
+        public Block call() {
+            Adler32 checksum = new Adler32();
+            checksum.update(input, 0, length);
+            adler = (int) checksum.getValue();
+
+            Deflater deflater = new Deflater(level, true);
+            try {
+                if (dictionary != null)
+                    deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+                deflater.setInput(input, 0, length);
+                byte[] out = new byte[length + (length >>> 3) + 64];
+                int n = 0;
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        if (n == out.length)
+                            out = grow(out);
+                        n += deflater.deflate(out, n, out.length - n);
+                    }
+                } else {
+                    while (true) {
+                        n += deflater.deflate(out, n, out.length - n, Deflater.SYNC_FLUSH);
+                        if (n < out.length)
+                            break;
+                        out = grow(out);
+                    }
+                }
+                output = out;
+                outputLength = n;
+            } finally {
+                deflater.end();
+            }
+            return this;
+        }
+
+        private static byte[] grow(byte[] array) {
+            byte[] next = new byte[array.length << 1];
+            System.arraycopy(array, 0, next, 0, array.length);
+            return next;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.tommyettinger.anim8;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Like a BufferedOutputStream, but the stream it writes to can be changed with {@link #setOutput(OutputStream)}, so
+ * one buffer can be reused for every file a writer produces. Single-byte writes only touch the buffer, which is passed
+ * to the underlying stream in large blocks; writes at least as large as the buffer skip it entirely.
+ */
+class ReusableBufferedOutputStream extends OutputStream {
+    private final byte[] buffer;
+    private int count;
+    private OutputStream out;
+
+    /**
+     * @param size how many bytes the buffer holds
+     */
+    ReusableBufferedOutputStream(int size) {
+        buffer = new byte[Math.max(size, 1)];
+    }
+
+    /**
+     * Changes the stream this writes to, discarding anything still in the buffer. Call {@link #flush()} first to keep
+     * buffered bytes. Setting this to null releases the previous stream.
+     * @param out the OutputStream to write to; may be null
+     */
+    void setOutput(OutputStream out) {
+        this.out = out;
+        count = 0;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length)
+            flushBuffer();
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= buffer.length) {
+            flushBuffer();
+            out.write(b, off, len);
+            return;
+        }
+        if (len > buffer.length - count)
+            flushBuffer();
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.github.tommyettinger.anim8;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntArray;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Splits an animation into scenes by comparing coarse color histograms of consecutive frames, so each scene can get a
+ * palette of its own. Each histogram has 64 bins for opaque colors (4 levels each of red, green, and blue) plus one for
+ * transparent pixels, and is normalized so frames of any size can be compared. The difference between two histograms
+ * is the fraction of pixels that would need to change bins to turn one into the other, from 0.0 (same colors) to 1.0
+ * (no colors in common).
+ */
+final class SceneDetection {
+    private SceneDetection() {
+    }
+
+    /**
+     * Most pixels this samples from any one frame; larger frames are sampled at regular intervals.
+     */
+    static final int SAMPLES = 1 << 14;
+
+    /**
+     * Finds where each scene in frames starts, where a new scene starts whenever the histogram difference between a
+     * frame and the one before it is greater than threshold. The first item is always 0.
+     * @param frames the frames of the animation, in order
+     * @param threshold how different consecutive frames must be to start a new scene, from 0.0 to 1.0
+     * @param threads how many threads to compute histograms on; 1 or less computes them on this thread
+     * @return the index of the first frame in each scene, in order
+     */
+    static IntArray findScenes(final Array<Pixmap> frames, double threshold, int threads) {
+        final float[][] histograms = new float[frames.size][];
+        if (threads > 1 && frames.size > 1) {
+            ExecutorService pool = Executors.newFixedThreadPool(threads, new DaemonThreadFactory());
+            try {
+                ArrayDeque<Future<float[]>> pending = new ArrayDeque<>(frames.size);
+                for (int i = 0; i < frames.size; i++) {
+                    final Pixmap frame = frames.get(i);
+                    pending.addLast(pool.submit(new Callable<float[]>() {
+                        @Override
+                        public float[] call() {
+                            return histogram(frame);
+                        }
+                    }));
+                }
+                for (int i = 0; i < frames.size; i++) {
+                    histograms[i] = pending.removeFirst().get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Gdx.app.error("anim8", e.getMessage());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        IntArray starts = new IntArray();
+        if (frames.size == 0)
+            return starts;
+        starts.add(0);
+        if (histograms[0] == null)
+            histograms[0] = histogram(frames.first());
+        for (int i = 1; i < frames.size; i++) {
+            if (histograms[i] == null)
+                histograms[i] = histogram(frames.get(i));
+            if (difference(histograms[i - 1], histograms[i]) > threshold)
+                starts.add(i);
+        }
+        return starts;
+    }
+
+    /**
+     * Analyzes each scene of frames (as given by {@link #findScenes(Array, double, int)}) to get one palette for all of
+     * the frames in that scene, analyzing up to threads scenes at once.
+     * @param frames the frames of the animation, in order
+     * @param starts the index of the first frame in each scene, starting with 0
+     * @param threads how many scenes to analyze at once; 1 or less analyzes them on this thread
+     * @return an array with the palette for each frame, where all frames in a scene share the same PaletteReducer
+     */
+    static PaletteReducer[] scenePalettes(final Array<Pixmap> frames, IntArray starts, int threads) {
+        final PaletteReducer[] palettes = new PaletteReducer[frames.size];
+        final int scenes = starts.size;
+        final PaletteReducer[] scenePalettes = new PaletteReducer[scenes];
+        if (threads > 1 && scenes > 1) {
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, scenes), new DaemonThreadFactory());
+            try {
+                ArrayDeque<Future<PaletteReducer>> pending = new ArrayDeque<>(scenes);
+                for (int s = 0; s < scenes; s++) {
+                    final int start = starts.get(s), end = s + 1 < scenes ? starts.get(s + 1) : frames.size;
+                    pending.addLast(pool.submit(new Callable<PaletteReducer>() {
+                        @Override
+                        public PaletteReducer call() {
+                            return analyze(frames, start, end);
+                        }
+                    }));
+                }
+                for (int s = 0; s < scenes; s++) {
+                    scenePalettes[s] = pending.removeFirst().get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Gdx.app.error("anim8", e.getMessage());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        for (int s = 0; s < scenes; s++) {
+            final int start = starts.get(s), end = s + 1 < scenes ? starts.get(s + 1) : frames.size;
+            if (scenePalettes[s] == null)
+                scenePalettes[s] = analyze(frames, start, end);
+            for (int i = start; i < end; i++) {
+                palettes[i] = scenePalettes[s];
+            }
+        }
+        return palettes;
+    }
+
+    private static PaletteReducer analyze(Array<Pixmap> frames, int start, int end) {
+        Array<Pixmap> scene = new Array<>(end - start);
+        for (int i = start; i < end; i++) {
+            scene.add(frames.get(i));
+        }
+        return new PaletteReducer(scene);
+    }
+
+    /**
+     * Gets the normalized coarse color histogram of pixmap, with 64 opaque bins and a last bin for transparent pixels.
+     */
+    static float[] histogram(Pixmap pixmap) {
+        final int width = pixmap.getWidth(), height = pixmap.getHeight(), size = width * height;
+        final int step = Math.max(1, size / SAMPLES);
+        final float[] histogram = new float[65];
+        int count = 0;
+        for (int i = 0; i < size; i += step, count++) {
+            final int color = pixmap.getPixel(i % width, i / width);
+            if ((color & 0x80) == 0)
+                histogram[64]++;
+            else
+                histogram[(color >>> 30) << 4 | (color >>> 22 & 3) << 2 | (color >>> 14 & 3)]++;
+        }
+        if (count > 0) {
+            for (int b = 0; b < histogram.length; b++) {
+                histogram[b] /= count;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Gets the fraction of pixels that are in different bins between two normalized histograms, from 0.0 to 1.0.
+     */
+    static double difference(float[] a, float[] b) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            sum += Math.abs(a[i] - b[i]);
+        }
+        return sum * 0.5;
+    }
+}